@@ -0,0 +1,131 @@
+package toyocsbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time from a command being published on an idle command topic
+ * until it is accepted, for the original receive loop, which polled every
+ * topic and then slept for 100ms, and for the {@link CommandPoller} used by
+ * the SAL transport. The topics are in memory, standing in for the nine SAL
+ * command topics, with a non-blocking accept like SAL's. Each command arrives
+ * after a random idle gap of 20 to 100ms, so the poller has backed off.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class AcceptLatencyBenchmark {
+
+    private static final int TOPICS = 9;
+
+    @Param({"sleepLoop", "poller"})
+    String receiver;
+
+    private final List<InMemoryTopic> topics = new ArrayList<>();
+    private final Semaphore accepted = new Semaphore(0);
+    private final Random random = new Random(1);
+    private volatile boolean shutdown;
+    private CommandPoller poller;
+    private Thread thread;
+    private int next;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < TOPICS; i++) {
+            topics.add(new InMemoryTopic());
+        }
+        Runnable loop;
+        if ("poller".equals(receiver)) {
+            poller = new CommandPoller(topics, CommandPoller.MAX_IDLE_PARK_NANOS);
+            loop = poller;
+        } else {
+            loop = this::sleepLoop;
+        }
+        thread = new Thread(loop, "AcceptLatencyBenchmark-" + receiver);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        shutdown = true;
+        if (poller != null) {
+            poller.shutdown();
+        }
+        thread.join();
+    }
+
+    /**
+     * Leave the topics idle for a while before each command.
+     */
+    @Setup(Level.Invocation)
+    public void idle() throws InterruptedException {
+        Thread.sleep(20 + random.nextInt(81));
+    }
+
+    /**
+     * Publish a command on one of the topics, and wait until it is accepted.
+     */
+    @Benchmark
+    public void accept() throws InterruptedException {
+        topics.get(next++ % TOPICS).publish();
+        accepted.acquire();
+    }
+
+    /**
+     * The receive loop the poller replaced.
+     */
+    private void sleepLoop() {
+        while (!shutdown) {
+            for (InMemoryTopic topic : topics) {
+                topic.accept();
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private class InMemoryTopic implements CommandPoller.Topic {
+
+        private final Queue<Integer> commands = new ConcurrentLinkedQueue<>();
+
+        void publish() {
+            commands.add(next);
+        }
+
+        @Override
+        public boolean accept() {
+            if (commands.poll() == null) {
+                return false;
+            }
+            accepted.release();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package toyocsbridge;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Utilities shared by the benchmarks.
+ *
+ * @author tonyj
+ */
+class Benchmarks {
+
+    /**
+     * An enumeration used by the benchmarks to toggle a state.
+     */
+    enum Toggle {
+        ON, OFF
+    }
+
+    /**
+     * An enumeration used by the benchmarks for a state which never changes.
+     */
+    enum Fixed {
+        VALUE, NEVER_REACHED
+    }
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Stop the state change logging going to the console, we want to measure
+     * the state machinery, not the console.
+     */
+    static void quietLogging() {
+        Logger.getLogger("toyocsbridge").setLevel(Level.WARNING);
+    }
+}
@@ -0,0 +1,95 @@
+package toyocsbridge;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import toyocsbridge.OCSCommandExecutor.BlockingOCSCommand;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+import toyocsbridge.OCSCommandExecutor.PreconditionsNotMet;
+
+/**
+ * Benchmarks the round trip of a trivial OCS command through the command
+ * executor, from submission to completion, with a varying number of CCS
+ * listeners observing the command state transitions. A command is complete
+ * when the executor has returned to idle.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandExecutorBenchmark {
+
+    @Param({"1", "10", "1000"})
+    int listeners;
+
+    private CCS ccs;
+    private OCSCommandExecutor executor;
+    private final Semaphore completed = new Semaphore(0);
+    private final TrivialCommand command = new TrivialCommand();
+    private long notifications;
+
+    @Setup
+    public void setup() {
+        Benchmarks.quietLogging();
+        ccs = new CCS();
+        executor = new OCSCommandExecutor(ccs) {
+            @Override
+            protected void reportComplete(OCSCommand command) {
+            }
+        };
+        // The command is only finished once the executor is idle again
+        ccs.addStateChangeListener((state, oldState) -> {
+            if (state.getState() == OCSCommandExecutor.CommandState.IDLE) {
+                completed.release();
+            }
+        });
+        for (int i = 0; i < listeners; i++) {
+            ccs.addStateChangeListener((state, oldState) -> notifications++);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        ccs.shutdown();
+    }
+
+    @Benchmark
+    public long executeCommand() throws InterruptedException {
+        executor.executeCommand(command);
+        completed.acquire();
+        return notifications;
+    }
+
+    private static class TrivialCommand extends BlockingOCSCommand {
+
+        TrivialCommand() {
+            super(0);
+        }
+
+        @Override
+        Duration testPreconditions() throws PreconditionsNotMet {
+            return Duration.ZERO;
+        }
+
+        @Override
+        void execute() {
+        }
+    }
+}
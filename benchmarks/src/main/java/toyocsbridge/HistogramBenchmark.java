@@ -0,0 +1,42 @@
+package toyocsbridge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks recording into the command latency histograms, which is done
+ * several times for every OCS command.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private long value = 1;
+
+    @Benchmark
+    public void record() {
+        // Spread the values over the whole range of buckets
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        histogram.record(value >>> 24);
+    }
+
+    @Benchmark
+    public long percentile() {
+        return histogram.getValueAtPercentile(0.99);
+    }
+}
@@ -0,0 +1,91 @@
+package toyocsbridge;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import toyocsbridge.OCSCommandExecutor.BlockingOCSCommand;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+import toyocsbridge.OCSCommandExecutor.PreconditionsNotMet;
+
+/**
+ * Benchmarks writing command records to the journal. Transitions are
+ * journaled from the event bus, so do not appear on the state change path at
+ * all, see {@link StateBenchmark}.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    private CCS ccs;
+    private Path directory;
+    private Journal journal;
+    private final OCSCommand command = new JournaledCommand();
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.quietLogging();
+        ccs = new CCS();
+        directory = Files.createTempDirectory("journal");
+        journal = new Journal(ccs, directory);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        ccs.shutdown();
+        for (Path segment : JournalReader.segments(directory)) {
+            Files.delete(segment);
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void commandReceived() {
+        journal.commandReceived(command);
+    }
+
+    @Benchmark
+    public void commandCompleted() {
+        journal.commandCompleted(command);
+    }
+
+    private static class JournaledCommand extends BlockingOCSCommand {
+
+        JournaledCommand() {
+            super(1);
+        }
+
+        @Override
+        Duration testPreconditions() throws PreconditionsNotMet {
+            return Duration.ZERO;
+        }
+
+        @Override
+        void execute() {
+        }
+
+        @Override
+        Object[] getArguments() {
+            return new Object[]{15.0, 2, true, true, false, false, "visit"};
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package toyocsbridge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the dominant CCS timer pattern, a short timer which is cancelled
+ * before it fires, with a large number of other timers outstanding. Compares
+ * the ScheduledThreadPoolExecutor, with and without remove on cancel, against
+ * the timing wheel. Without remove on cancel the thread pool keeps every
+ * cancelled timer until its deadline, so its queue keeps growing with the
+ * number of operations run.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    @Param({"pool", "poolRemoveOnCancel", "wheel"})
+    String scheduler;
+
+    @Param({"10000", "100000"})
+    int outstanding;
+
+    private CCSScheduler ccsScheduler;
+    private final Runnable task = () -> {
+    };
+    private int next;
+
+    @Setup
+    public void setup() {
+        switch (scheduler) {
+            case "pool":
+                ccsScheduler = new RealTimeScheduler(4);
+                break;
+            case "poolRemoveOnCancel":
+                RealTimeScheduler pool = new RealTimeScheduler(4);
+                pool.setRemoveOnCancelPolicy(true);
+                ccsScheduler = pool;
+                break;
+            default:
+                ccsScheduler = new TimingWheelScheduler(4);
+        }
+        for (int i = 0; i < outstanding; i++) {
+            ccsScheduler.schedule(task, 1 + i % 3600, TimeUnit.SECONDS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        ccsScheduler.shutdownNow();
+    }
+
+    /**
+     * Schedule a timer a few hundred milliseconds out, like the shutter not
+     * ready timer, and cancel it.
+     */
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        return ccsScheduler.schedule(task, 100 + (next++ & 1023), TimeUnit.MILLISECONDS).cancel(false);
+    }
+}
@@ -0,0 +1,97 @@
+package toyocsbridge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import toyocsbridge.AggregateStatus.StatusMask;
+import toyocsbridge.Benchmarks.Fixed;
+import toyocsbridge.Benchmarks.Toggle;
+
+/**
+ * Benchmarks for state transitions and their notification, with a varying
+ * number of listeners registered both on the state and on the CCS.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+
+    @Param({"1", "10", "1000"})
+    int listeners;
+
+    private CCS ccs;
+    private toyocsbridge.State<Toggle> toggle;
+    private Toggle next = Toggle.OFF;
+    private long notifications;
+    private StatusMask mask;
+
+    @Setup
+    public void setup() {
+        Benchmarks.quietLogging();
+        ccs = new CCS();
+        toggle = new toyocsbridge.State<>(ccs, Toggle.ON);
+        new toyocsbridge.State<>(ccs, Fixed.VALUE);
+        mask = ccs.getAggregateStatus().mask(Toggle.ON, Fixed.VALUE);
+        for (int i = 0; i < listeners; i++) {
+            toggle.addStateChangeListener((state, oldState) -> notifications++);
+            ccs.addStateChangeListener((state, oldState) -> notifications++);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        ccs.shutdown();
+    }
+
+    /**
+     * A complete transition, including notification of all listeners
+     */
+    @Benchmark
+    public long setState() {
+        toggle.setState(next);
+        next = next == Toggle.ON ? Toggle.OFF : Toggle.ON;
+        return notifications;
+    }
+
+    /**
+     * Only the CCS part of the notification.
+     */
+    @Benchmark
+    public long notifyStateChanged() {
+        ccs.notifyStateChanged(toggle, Toggle.OFF, Toggle.ON, 0);
+        return notifications;
+    }
+
+    @Benchmark
+    public boolean hasState() {
+        return ccs.getAggregateStatus().hasState(Toggle.ON, Fixed.VALUE);
+    }
+
+    /**
+     * The same test as {@link #hasState()}, precompiled.
+     */
+    @Benchmark
+    public boolean statusMask() {
+        return mask.matches();
+    }
+
+    @Benchmark
+    public long snapshot() {
+        return ccs.getAggregateStatus().snapshot().getVersion();
+    }
+}
@@ -0,0 +1,79 @@
+package toyocsbridge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import toyocsbridge.AggregateStatus.StatusMask;
+import toyocsbridge.Rafts.RaftsState;
+import toyocsbridge.Shutter.ShutterReadinessState;
+import toyocsbridge.Shutter.ShutterState;
+import toyocsbridge.ToyOCSBridge.TakeImageReadinessState;
+
+/**
+ * Benchmark for a complete expose and readout cycle of the shutter and rafts
+ * state machines, with a readiness listener like the one used by the bridge.
+ * Run with the GC profiler (-prof gc), gc.alloc.rate.norm should be close to
+ * zero bytes per operation, since state transitions must not allocate.
+ * StateAllocationTest checks this on every build.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionBenchmark {
+
+    private CCS ccs;
+    private toyocsbridge.State<RaftsState> rafts;
+    private toyocsbridge.State<ShutterState> shutter;
+
+    @Setup
+    public void setup() {
+        Benchmarks.quietLogging();
+        ccs = new CCS();
+        rafts = new toyocsbridge.State<>(ccs, RaftsState.QUIESCENT);
+        shutter = new toyocsbridge.State<>(ccs, ShutterState.CLOSED);
+        new toyocsbridge.State<>(ccs, ShutterReadinessState.READY);
+        toyocsbridge.State<TakeImageReadinessState> readiness = new toyocsbridge.State<>(ccs, TakeImageReadinessState.READY);
+        StatusMask readyToTakeImage = ccs.getAggregateStatus().mask(RaftsState.QUIESCENT, ShutterReadinessState.READY);
+        ccs.addStateChangeListener((state, oldState) -> {
+            if (readyToTakeImage.matches()) {
+                readiness.setState(TakeImageReadinessState.READY);
+            } else {
+                readiness.setState(TakeImageReadinessState.NOT_READY);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        ccs.shutdown();
+    }
+
+    /**
+     * One exposure: open the shutter, integrate, close the shutter and read
+     * out.
+     */
+    @Benchmark
+    public void exposeAndReadout() {
+        shutter.setState(ShutterState.OPENING);
+        rafts.setState(RaftsState.INTEGRATING);
+        shutter.setState(ShutterState.OPEN);
+        shutter.setState(ShutterState.CLOSING);
+        shutter.setState(ShutterState.CLOSED);
+        rafts.setState(RaftsState.READING_OUT);
+        rafts.setState(RaftsState.QUIESCENT);
+    }
+}
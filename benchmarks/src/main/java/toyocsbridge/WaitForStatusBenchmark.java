@@ -0,0 +1,93 @@
+package toyocsbridge;
+
+import java.time.Duration;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import toyocsbridge.Benchmarks.Fixed;
+import toyocsbridge.Benchmarks.Toggle;
+
+/**
+ * Benchmarks waiting for a state, with a varying number of other waiters
+ * (both single state and predicate waiters) outstanding for a state which is
+ * never reached.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaitForStatusBenchmark {
+
+    @Param({"1", "10", "1000"})
+    int waiters;
+
+    private CCS ccs;
+    private toyocsbridge.State<Toggle> toggle;
+    private final StatusPredicate offAndFixed = StatusPredicate.allOf(Toggle.OFF, Fixed.VALUE);
+
+    @Setup
+    public void setup() {
+        Benchmarks.quietLogging();
+        ccs = new CCS();
+        toggle = new toyocsbridge.State<>(ccs, Toggle.ON);
+        new toyocsbridge.State<>(ccs, Fixed.VALUE);
+        for (int i = 0; i < waiters; i++) {
+            ccs.waitForStatus(Fixed.NEVER_REACHED);
+            ccs.waitForAsync(StatusPredicate.is(Fixed.NEVER_REACHED), Duration.ofHours(1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        ccs.shutdown();
+    }
+
+    /**
+     * Register a waiter, satisfy it and collect the result.
+     */
+    @Benchmark
+    public Object waitForStatus() throws Exception {
+        Future<Void> future = ccs.waitForStatus(Toggle.OFF);
+        toggle.setState(Toggle.OFF);
+        Object result = future.get(1, TimeUnit.SECONDS);
+        toggle.setState(Toggle.ON);
+        return result;
+    }
+
+    /**
+     * Register a predicate waiter, satisfy it and collect the result. The
+     * outstanding predicate waiters are never evaluated, since they do not
+     * reference the state which changes.
+     */
+    @Benchmark
+    public Object waitForPredicate() throws Exception {
+        Future<Void> future = ccs.waitForAsync(offAndFixed, Duration.ofSeconds(1));
+        toggle.setState(Toggle.OFF);
+        Object result = future.get(1, TimeUnit.SECONDS);
+        toggle.setState(Toggle.ON);
+        return result;
+    }
+
+    /**
+     * Wait for a state which is already present.
+     */
+    @Benchmark
+    public Object waitForCurrentStatus() throws Exception {
+        return ccs.waitForStatus(Toggle.ON).get(1, TimeUnit.SECONDS);
+    }
+}
@@ -1,36 +1,261 @@
 package toyocsbridge;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A collection of different state objects.
+ * <p>
+ * As well as the states themselves, the aggregate status keeps the ordinal of
+ * every state packed into an array of words, each state being given a fixed
+ * bit field when it is added. A test of several states at once can then be
+ * compiled into a {@link StatusMask}, which is a mask and compare per word.
+ * For a camera sized set of states all the fields fit in a single word, so
+ * such a test reads the whole aggregate atomically.
+ * <p>
+ * The words are protected by a sequence lock: writers make the sequence odd
+ * while they update a word, and readers which need more than one word retry
+ * if the sequence changed while they were reading. Readers therefore never
+ * see a half updated combination of states, and never block writers. The
+ * sequence also gives each state of the aggregate a version number, which
+ * increases by one on every change, so consumers of {@link #snapshot()} can
+ * tell cheaply whether they have missed any changes.
+ *
  * @author tonyj
  */
 public class AggregateStatus {
- 
+
+    private static final int BITS_PER_WORD = Long.SIZE;
+    /**
+     * The number of words available for packed states. This is fixed so that
+     * the words can be updated without locking while states are being added.
+     */
+    private static final int MAX_WORDS = 64;
+
     private final Map<Class<? extends Enum>,State> states = new LinkedHashMap<>();
-       
-    void add(State<?> state) {
+    private final List<State<?>> statesById = new CopyOnWriteArrayList<>();
+    private final AtomicLongArray words = new AtomicLongArray(MAX_WORDS);
+    /**
+     * Sequence lock protecting the words, odd while a word is being written.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+    private final WordSource liveWords = words::get;
+    // The bit field assigned to each state, indexed by state id
+    private volatile int[] fieldWord = new int[0];
+    private volatile int[] fieldShift = new int[0];
+    private volatile long[] fieldMask = new long[0];
+    private int nextWord = 0;
+    private int nextShift = 0;
+
+    /**
+     * Add a state to the aggregate status.
+     * @param state The state to add
+     * @return The id assigned to the state
+     */
+    synchronized int add(State<?> state) {
+        int nValues = state.getEnumClass().getEnumConstants().length;
+        int width = Math.max(1, BITS_PER_WORD - Long.numberOfLeadingZeros(nValues - 1));
+        if (nextShift + width > BITS_PER_WORD) {
+            nextWord++;
+            nextShift = 0;
+        }
+        if (nextWord >= MAX_WORDS) {
+            throw new IllegalStateException("Too many states in aggregate status");
+        }
+        int id = statesById.size();
+        int[] newWord = Arrays.copyOf(fieldWord, id + 1);
+        int[] newShift = Arrays.copyOf(fieldShift, id + 1);
+        long[] newMask = Arrays.copyOf(fieldMask, id + 1);
+        newWord[id] = nextWord;
+        newShift[id] = nextShift;
+        newMask[id] = (-1L >>> (BITS_PER_WORD - width)) << nextShift;
+        nextShift += width;
+        fieldWord = newWord;
+        fieldShift = newShift;
+        fieldMask = newMask;
+        update(id, state.getState().ordinal());
+
         states.put(state.getEnumClass(), state);
+        statesById.add(state);
+        return id;
+    }
+
+    /**
+     * Update the packed copy of a state. Called by the state itself, before
+     * notifying listeners of the change.
+     *
+     * @param id The id of the state
+     * @param ordinal The ordinal of the new state
+     */
+    void update(int id, int ordinal) {
+        int word = fieldWord[id];
+        long mask = fieldMask[id];
+        long value = ((long) ordinal << fieldShift[id]) & mask;
+        long seq;
+        // Writers exclude each other by making the sequence odd, the critical section is tiny
+        while (((seq = sequence.get()) & 1) != 0 || !sequence.compareAndSet(seq, seq + 1)) {
+            Thread.yield();
+        }
+        words.set(word, (words.get(word) & ~mask) | value);
+        sequence.set(seq + 2);
+    }
+
+    /**
+     * Wait for any update in progress to finish.
+     *
+     * @return The (even) sequence number at which to start reading
+     */
+    private long beginRead() {
+        long seq;
+        while (((seq = sequence.get()) & 1) != 0) {
+            Thread.yield();
+        }
+        return seq;
+    }
+
+    /**
+     * @return The version of the aggregate status, which increases by one on
+     * every state change
+     */
+    long getVersion() {
+        return beginRead() >>> 1;
     }
+
+    /**
+     * Take a consistent, immutable, copy of the aggregate status.
+     *
+     * @return The snapshot
+     */
+    Snapshot snapshot() {
+        int[] word = fieldWord;
+        int[] shift = fieldShift;
+        long[] mask = fieldMask;
+        int nWords = word.length == 0 ? 0 : word[word.length - 1] + 1;
+        long[] copy = new long[nWords];
+        for (;;) {
+            long seq = beginRead();
+            for (int i = 0; i < nWords; i++) {
+                copy[i] = words.get(i);
+            }
+            if (sequence.get() == seq) {
+                return new Snapshot(seq >>> 1, copy, word, shift, mask);
+            }
+        }
+    }
+
+    /**
+     * Look up a state by the id assigned when it was added.
+     * @param id The id
+     * @return The state
+     */
+    State<?> getState(int id) {
+        return statesById.get(id);
+    }
+
     /**
-     * Test if all given states are present in the aggregate status.
+     * Look up a state by its enum class.
+     * @param enumClass The enum class
+     * @return The state, or <code>null</code> if there is no such state
+     */
+    State<?> getState(Class<? extends Enum> enumClass) {
+        return states.get(enumClass);
+    }
+
+    /**
+     * Test if a state is present in the aggregate status.
+     * @param stateToTest The state to look for
+     * @return <code>true</code> if the state is present
+     */
+    boolean hasState(Enum stateToTest) {
+        State state = states.get(stateToTest.getClass());
+        return state != null && state.isInState(stateToTest);
+    }
+
+    /**
+     * Test if all given states are present in the aggregate status. The states
+     * are tested together, as of a single version of the aggregate status. For
+     * tests which are made repeatedly use {@link #mask(java.lang.Enum...)}
+     * instead.
      * @param states The states to look for
      * @return <code>true</code> if all states are present
      */
     boolean hasState(Enum ... statesToTest) {
+        for (;;) {
+            long seq = beginRead();
+            // Read after the sequence, so any state found below has its field
+            int[] word = fieldWord;
+            int[] shift = fieldShift;
+            long[] mask = fieldMask;
+            boolean result = true;
+            for (Enum e : statesToTest) {
+                State state = states.get(e.getClass());
+                if (state == null) {
+                    return false;
+                }
+                int id = state.getId();
+                if (((words.get(word[id]) & mask[id]) >>> shift[id]) != e.ordinal()) {
+                    result = false;
+                    break;
+                }
+            }
+            if (sequence.get() == seq) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Compile a test for the given states. The states being tested must
+     * already have been added to the aggregate status.
+     * @param statesToTest The states which must all be present for the mask
+     * to match
+     * @return The compiled test
+     */
+    synchronized StatusMask mask(Enum ... statesToTest) {
+        long[] masks = new long[nextWord + 1];
+        long[] values = new long[nextWord + 1];
+        boolean satisfiable = true;
         for (Enum e : statesToTest) {
-            Class<? extends Enum> enumClass = e.getClass();
-            State state = states.get(enumClass);
-            if (state == null || !state.isInState(e)) {
-                return false;
+            State state = states.get(e.getClass());
+            if (state == null) {
+                throw new IllegalArgumentException("Unknown state: " + e.getClass().getSimpleName());
+            }
+            int id = state.getId();
+            int word = fieldWord[id];
+            long value = ((long) e.ordinal() << fieldShift[id]) & fieldMask[id];
+            if ((masks[word] & fieldMask[id]) != 0 && (values[word] & fieldMask[id]) != value) {
+                // Two different values of the same state can never both be present
+                satisfiable = false;
+            }
+            masks[word] |= fieldMask[id];
+            values[word] |= value;
+        }
+        int n = 0;
+        for (long mask : masks) {
+            if (mask != 0) {
+                n++;
             }
         }
-        return true;
+        int[] wordIndex = new int[n];
+        long[] wordMasks = new long[n];
+        long[] wordValues = new long[n];
+        for (int word = 0, i = 0; word < masks.length; word++) {
+            if (masks[word] != 0) {
+                wordIndex[i] = word;
+                wordMasks[i] = masks[word];
+                wordValues[i] = values[word];
+                i++;
+            }
+        }
+        return new StatusMask(wordIndex, wordMasks, wordValues, satisfiable);
     }
-    
+
     Collection<State> getStates() {
         return states.values();
     }
@@ -39,4 +264,147 @@ public class AggregateStatus {
     public String toString() {
         return "AggregateStatus{" + "states=" + states.values() + '}';
     }
+
+    /**
+     * A precompiled test of the aggregate status, see
+     * {@link AggregateStatus#mask(java.lang.Enum...)}.
+     */
+    class StatusMask {
+
+        private final int[] wordIndex;
+        private final long[] masks;
+        private final long[] values;
+        private final boolean satisfiable;
+
+        private StatusMask(int[] wordIndex, long[] masks, long[] values, boolean satisfiable) {
+            this.wordIndex = wordIndex;
+            this.masks = masks;
+            this.values = values;
+            this.satisfiable = satisfiable;
+        }
+
+        /**
+         * @return <code>true</code> if all the states in the mask are
+         * currently present
+         */
+        boolean matches() {
+            if (wordIndex.length == 1) {
+                // A single word is read atomically, no need for the sequence lock
+                return (words.get(wordIndex[0]) & masks[0]) == values[0] && satisfiable;
+            }
+            for (;;) {
+                long seq = beginRead();
+                boolean result = matches(liveWords);
+                if (sequence.get() == seq) {
+                    return result;
+                }
+            }
+        }
+
+        private boolean matches(WordSource source) {
+            for (int i = 0; i < wordIndex.length; i++) {
+                if ((source.get(wordIndex[i]) & masks[i]) != values[i]) {
+                    return false;
+                }
+            }
+            return satisfiable;
+        }
+    }
+
+    private static interface WordSource {
+
+        long get(int word);
+    }
+
+    /**
+     * An immutable, consistent, copy of the aggregate status.
+     */
+    class Snapshot {
+
+        private final long version;
+        private final long[] snapshotWords;
+        private final int[] word;
+        private final int[] shift;
+        private final long[] mask;
+
+        private Snapshot(long version, long[] snapshotWords, int[] word, int[] shift, long[] mask) {
+            this.version = version;
+            this.snapshotWords = snapshotWords;
+            this.word = word;
+            this.shift = shift;
+            this.mask = mask;
+        }
+
+        /**
+         * @return The version of the aggregate status captured by this
+         * snapshot. If the versions of two snapshots differ by more than one,
+         * there were changes in between which were not seen.
+         */
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the value of a state in this snapshot.
+         *
+         * @param id The id of the state
+         * @return The value, or <code>null</code> if the state was added
+         * after the snapshot was taken
+         */
+        Enum getState(int id) {
+            if (id >= word.length) {
+                return null;
+            }
+            int ordinal = (int) ((snapshotWords[word[id]] & mask[id]) >>> shift[id]);
+            return AggregateStatus.this.getState(id).valueOf(ordinal);
+        }
+
+        /**
+         * Get the value of a state in this snapshot.
+         *
+         * @param <T> The type of the state
+         * @param enumClass The class of the state
+         * @return The value, or <code>null</code> if there is no such state in
+         * the snapshot
+         */
+        <T extends Enum> T getState(Class<T> enumClass) {
+            State state = states.get(enumClass);
+            return state == null ? null : enumClass.cast(getState(state.getId()));
+        }
+
+        /**
+         * Test if all the given states are present in this snapshot.
+         *
+         * @param statesToTest The states to look for
+         * @return <code>true</code> if all states are present
+         */
+        boolean hasState(Enum... statesToTest) {
+            for (Enum e : statesToTest) {
+                if (getState(e.getClass()) != e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Test a compiled mask against this snapshot.
+         *
+         * @param statusMask The mask
+         * @return <code>true</code> if the mask matches
+         */
+        boolean matches(StatusMask statusMask) {
+            return statusMask.matches(w -> w < snapshotWords.length ? snapshotWords[w] : 0);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder("Snapshot{version=").append(version);
+            for (int id = 0; id < word.length; id++) {
+                Enum value = getState(id);
+                result.append(", ").append(value.getClass().getSimpleName()).append('=').append(value);
+            }
+            return result.append('}').toString();
+        }
+    }
 }
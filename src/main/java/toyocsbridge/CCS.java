@@ -1,15 +1,25 @@
 package toyocsbridge;
 
 import java.time.Duration;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import toyocsbridge.State.StateChangeListener;
 
 /**
@@ -20,37 +30,159 @@ import toyocsbridge.State.StateChangeListener;
  */
 class CCS {
 
-    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(4);
-    private final List<StateChangeListener<? extends Enum>> listeners = new CopyOnWriteArrayList<>();
-    private final List<FutureStatus> waiters = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger instances = new AtomicInteger();
+    private final CCSScheduler scheduler;
+    private final String name = "ccs" + instances.getAndIncrement();
+    private static final Logger stateLogger = Logger.getLogger(State.class.getName());
+    private volatile StateChangeListener[] listeners = new StateChangeListener[0];
+    /**
+     * Outstanding waiters, indexed by the enum value they are waiting for.
+     */
+    private final Map<Class<? extends Enum>, WaiterBuckets> waiters = new ConcurrentHashMap<>();
+    /**
+     * Outstanding predicate waiters, indexed by the id of each state they
+     * reference. Copy on write, every element is non null.
+     */
+    private volatile Queue<PredicateWaiter>[] predicateWaiters = new Queue[0];
 
+    private final SchedulerMetrics schedulerMetrics;
     private final AggregateStatus as = new AggregateStatus();
-    
+    private final StateEventBus eventBus;
+
+    CCS() {
+        this(newDefaultScheduler());
+    }
+
+    /**
+     * Create the real time scheduler used by default. This is a
+     * ScheduledThreadPoolExecutor, unless the
+     * <code>toyocsbridge.scheduler</code> system property is set to
+     * <code>wheel</code>, in which case a timing wheel is used. The wheel
+     * copes better with many cancelled timers, but fires timers up to one
+     * tick late and its timer thread wakes on every tick, even when idle.
+     *
+     * @return The scheduler
+     */
+    private static CCSScheduler newDefaultScheduler() {
+        if ("wheel".equals(System.getProperty("toyocsbridge.scheduler"))) {
+            return new TimingWheelScheduler(4);
+        }
+        return new RealTimeScheduler(4);
+    }
+
+    /**
+     * Create a CCS using the given scheduler. All simulated timing, including
+     * the time seen by the state machines, is taken from the scheduler.
+     *
+     * @param scheduler The scheduler to use
+     */
+    CCS(CCSScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.schedulerMetrics = new SchedulerMetrics(scheduler);
+        this.eventBus = new StateEventBus(as, 4096, scheduler.getSubscriberExecutor());
+        // State changes are logged from the event bus, so that the formatting
+        // is kept off the state change path.
+        if (stateLogger.isLoggable(Level.INFO)) {
+            eventBus.subscribe("StateLogger", (state, oldState, newState, timestamp) -> {
+                stateLogger.log(Level.INFO, "State Changed {0}: {1}->{2}", new Object[]{state.getEnumClass().getSimpleName(), oldState, newState});
+            });
+        }
+    }
+
     <T> ScheduledFuture<T> schedule(Duration when, Callable<T> callable) {
-        return scheduler.schedule(callable, when.toMillis(), TimeUnit.MILLISECONDS);
+        long delay = when.toNanos();
+        return scheduler.schedule(schedulerMetrics.wrap(callable, delay), delay, TimeUnit.NANOSECONDS);
     }
     
     ScheduledFuture<?> schedule(Duration when, Runnable runnable) {
-        return scheduler.schedule(runnable, when.toMillis(), TimeUnit.MILLISECONDS);
+        long delay = when.toNanos();
+        return scheduler.schedule(schedulerMetrics.wrap(runnable, delay), delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The name of this CCS instance, unique within the JVM, used to
+     * name its MBeans
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return The lag, queue depth and run time measurements of the tasks
+     * run by the scheduler
+     */
+    SchedulerMetrics getSchedulerMetrics() {
+        return schedulerMetrics;
+    }
+
+    /**
+     * The current time, as seen by the CCS scheduler.
+     *
+     * @return The time in nanoseconds
+     */
+    long nanoTime() {
+        return scheduler.nanoTime();
+    }
+
+    /**
+     * Create an executor which runs tasks one at a time, in submission order,
+     * in step with the CCS scheduler.
+     *
+     * @param name The name of the executor
+     * @return The executor
+     */
+    ExecutorService newSerialExecutor(String name) {
+        return scheduler.newSerialExecutor(name);
     }
     
-    <T extends Enum> void notifyStateChanged(State<T> currentState, T oldState) {
+    <T extends Enum> void notifyStateChanged(State<T> currentState, T oldState, T newState, long timestamp) {
+        eventBus.publish(currentState.getId(), oldState.ordinal(), newState.ordinal(), timestamp);
         for (StateChangeListener l : listeners) {
             l.stateChanged(currentState, oldState);
         }
-        for (FutureStatus waiter : waiters) {
-            if (as.hasState(waiter.state)) {
-                waiter.done();
+        // Only waiters for the state just entered can have been satisfied
+        WaiterBuckets buckets = waiters.get(newState.getClass());
+        if (buckets != null) {
+            buckets.release(newState);
+        }
+        // Only predicates which reference the state which changed need re-evaluating
+        Queue<PredicateWaiter>[] predicateBuckets = predicateWaiters;
+        int id = currentState.getId();
+        if (id < predicateBuckets.length && !predicateBuckets[id].isEmpty()) {
+            for (PredicateWaiter waiter : predicateBuckets[id]) {
+                waiter.evaluate();
             }
         }
     }
     
-    void addStateChangeListener(StateChangeListener<? extends Enum> listener) {
-        listeners.add(listener);
+    /**
+     * Subscribe asynchronously to all state changes. Unlike listeners added
+     * with {@link #addStateChangeListener}, the handler runs on its own thread
+     * and cannot delay the state machine, so this should be used for any
+     * consumer which may be slow.
+     *
+     * @param name The name of the subscriber
+     * @param handler The handler to call for each state change
+     * @return The subscription, which can be used to monitor lag or to close
+     * it
+     */
+    StateEventBus.Subscription subscribe(String name, StateEventBus.StateEventHandler handler) {
+        return eventBus.subscribe(name, handler);
+    }
+
+    /**
+     * Add a listener which is called synchronously, on the thread making the
+     * state change. Such listeners form part of the state machine, and must
+     * be fast.
+     *
+     * @param listener The listener to add
+     */
+    synchronized void addStateChangeListener(StateChangeListener<? extends Enum> listener) {
+        listeners = Listeners.add(listeners, listener);
     }
     
-    void removeStateChangeListener(StateChangeListener<? extends Enum> listener) {
-        listeners.remove(listener);
+    synchronized void removeStateChangeListener(StateChangeListener<? extends Enum> listener) {
+        listeners = Listeners.remove(listeners, listener);
     }
 
     void shutdown() {
@@ -61,65 +193,278 @@ class CCS {
         return as;
     }
 
+    /**
+     * Wait for a particular status.
+     *
+     * @param state The state to wait for
+     * @return A future which completes when the state is reached
+     */
     Future<Void> waitForStatus(Enum state) {
-        FutureStatus waiter = new FutureStatus(state);
+        return register(new FutureStatus(state));
+    }
+
+    /**
+     * Wait asynchronously for a particular status. The returned stage
+     * completes exceptionally with a {@link TimeoutException} if the state is
+     * not reached within the timeout. The timeout is run by the CCS
+     * scheduler, and dependent actions run on the scheduler, never inside the
+     * state change notification, so no thread is held while waiting.
+     * Cancelling the returned stage stops the wait, and its timeout.
+     *
+     * @param state The state to wait for
+     * @param timeout The maximum time to wait
+     * @return A stage which completes when the state is reached
+     */
+    CompletableFuture<Void> waitForStatusAsync(Enum state, Duration timeout) {
+        FutureStatus waiter = register(new FutureStatus(state));
+        if (waiter.isDone()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ScheduledFuture<?> timer = schedule(timeout, waiter::timeout);
+        return new AsyncWait(waiter, timer);
+    }
+
+    /**
+     * Wait asynchronously for a condition on the aggregate status. As with
+     * {@link #waitForStatusAsync(Enum, Duration)}, the returned stage
+     * completes exceptionally with a {@link TimeoutException} if the
+     * condition is not satisfied within the timeout, dependent actions run on
+     * the scheduler, and cancelling it stops the wait. The predicate is only re-evaluated when one of the
+     * states it references changes. For a predicate with a hold time, the
+     * hold time is measured from when this waiter first sees the predicate
+     * true.
+     *
+     * @param predicate The condition to wait for
+     * @param timeout The maximum time to wait
+     * @return A stage which completes when the condition is satisfied
+     */
+    CompletableFuture<Void> waitForAsync(StatusPredicate predicate, Duration timeout) {
+        Set<Class<? extends Enum>> referenced = new HashSet<>();
+        predicate.collectStates(referenced);
+        int[] ids = new int[referenced.size()];
+        int n = 0;
+        for (Class<? extends Enum> enumClass : referenced) {
+            State<?> state = as.getState(enumClass);
+            if (state == null) {
+                throw new IllegalArgumentException("Unknown state: " + enumClass.getSimpleName());
+            }
+            ids[n++] = state.getId();
+        }
+        PredicateWaiter waiter = new PredicateWaiter(predicate, ids);
+        for (int id : ids) {
+            predicateBucket(id).add(waiter);
+        }
+        // The predicate may already be true, or have become true while adding the waiter
+        waiter.evaluate();
+        if (waiter.isDone()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ScheduledFuture<?> timer = schedule(timeout, waiter::timeout);
+        return new AsyncWait(waiter, timer);
+    }
+
+    private synchronized Queue<PredicateWaiter> predicateBucket(int id) {
+        Queue<PredicateWaiter>[] buckets = predicateWaiters;
+        if (id >= buckets.length) {
+            Queue<PredicateWaiter>[] newBuckets = Arrays.copyOf(buckets, id + 1);
+            for (int i = buckets.length; i < newBuckets.length; i++) {
+                newBuckets[i] = new ConcurrentLinkedQueue<>();
+            }
+            predicateWaiters = buckets = newBuckets;
+        }
+        return buckets[id];
+    }
+
+    private FutureStatus register(FutureStatus waiter) {
+        Enum state = waiter.state;
         if (as.hasState(state)) {
             waiter.done();
-        }
-        else {
-            waiters.add(waiter);
+        } else {
+            Queue<FutureStatus> bucket = waiters.computeIfAbsent(state.getClass(), WaiterBuckets::new).bucket(state);
+            bucket.add(waiter);
+            // The state may have been entered between the test above and adding the waiter
+            if (as.hasState(state) && bucket.remove(waiter)) {
+                waiter.done();
+            }
         }
         return waiter;
     }
+
+    private void unregister(FutureStatus waiter) {
+        WaiterBuckets buckets = waiters.get(waiter.state.getClass());
+        if (buckets != null) {
+            buckets.bucket(waiter.state).remove(waiter);
+        }
+    }
+
     /**
-     * An implementation of a future which wait for a particular status.
+     * Waiters for one enum class, with one bucket per enum value.
      */
-    private class FutureStatus implements Future<Void> {
+    private static class WaiterBuckets {
 
-        private boolean done = false;
-        private boolean cancelled = false;
-        private final Enum state;
+        private final Queue<FutureStatus>[] byOrdinal;
 
-        FutureStatus(Enum state) {
-            this.state = state;
+        WaiterBuckets(Class<? extends Enum> enumClass) {
+            int size = enumClass.getEnumConstants().length;
+            byOrdinal = new Queue[size];
+            for (int i = 0; i < size; i++) {
+                byOrdinal[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        Queue<FutureStatus> bucket(Enum state) {
+            return byOrdinal[state.ordinal()];
+        }
+
+        /**
+         * Remove and complete all waiters for the given state. Each waiter is
+         * removed atomically, so is completed exactly once.
+         */
+        void release(Enum state) {
+            Queue<FutureStatus> bucket = byOrdinal[state.ordinal()];
+            for (FutureStatus waiter; (waiter = bucket.poll()) != null;) {
+                waiter.done();
+            }
+        }
+    }
+    /**
+     * A future which waits for a status predicate to be satisfied.
+     */
+    private class PredicateWaiter extends CompletableFuture<Void> {
+
+        private final StatusPredicate predicate;
+        private final int[] ids;
+        private final Duration holdTime;
+        private ScheduledFuture<?> holdTimer;
+
+        PredicateWaiter(StatusPredicate predicate, int[] ids) {
+            this.predicate = predicate;
+            this.ids = ids;
+            this.holdTime = predicate.getHoldTime();
+        }
+
+        /**
+         * Called when one of the referenced states has changed.
+         */
+        synchronized void evaluate() {
+            if (isDone()) {
+                return;
+            }
+            if (predicate.test(as)) {
+                if (holdTime.isZero()) {
+                    done();
+                } else if (holdTimer == null) {
+                    holdTimer = schedule(holdTime, this::held);
+                }
+            } else if (holdTimer != null) {
+                holdTimer.cancel(false);
+                holdTimer = null;
+            }
+        }
+
+        private synchronized void held() {
+            if (!isDone() && predicate.test(as)) {
+                done();
+            }
+        }
+
+        private void done() {
+            unregister();
+            complete(null);
         }
+
+        synchronized void timeout() {
+            if (holdTimer != null) {
+                holdTimer.cancel(false);
+            }
+            unregister();
+            completeExceptionally(new TimeoutException("Timeout waiting for: " + predicate));
+        }
+
         @Override
-        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
-            cancelled = true;
-            waiters.remove(this);
-            notifyAll();
-            return true;
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (holdTimer != null) {
+                    holdTimer.cancel(false);
+                }
+            }
+            unregister();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        private void unregister() {
+            Queue<PredicateWaiter>[] buckets = predicateWaiters;
+            for (int id : ids) {
+                buckets[id].remove(this);
+            }
+        }
+    }
+
+    /**
+     * The stage returned by the asynchronous waits. It completes on the
+     * scheduler once the waiter completes, and cancelling it cancels the
+     * waiter, so that it is unregistered, and the timeout.
+     */
+    private class AsyncWait extends CompletableFuture<Void> {
+
+        private final CompletableFuture<Void> waiter;
+        private final ScheduledFuture<?> timer;
+
+        AsyncWait(CompletableFuture<Void> waiter, ScheduledFuture<?> timer) {
+            this.waiter = waiter;
+            this.timer = timer;
+            waiter.whenCompleteAsync((result, ex) -> {
+                timer.cancel(false);
+                if (ex == null) {
+                    complete(null);
+                } else {
+                    completeExceptionally(ex instanceof CompletionException ? ex : new CompletionException(ex));
+                }
+            }, scheduler);
         }
 
         @Override
-        public boolean isCancelled() {
-            return cancelled;
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            timer.cancel(false);
+            waiter.cancel(false);
+            return super.cancel(mayInterruptIfRunning);
         }
-        
+    }
+
+    /**
+     * A future which waits for a particular status.
+     */
+    private class FutureStatus extends CompletableFuture<Void> {
+
+        private final Enum state;
+
+        FutureStatus(Enum state) {
+            this.state = state;
+        }
+
         @Override
-        public boolean isDone() {
-            return done;
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            unregister(this);
+            return super.cancel(mayInterruptIfRunning);
         }
-        
+
         @Override
-        public synchronized Void get() throws InterruptedException, ExecutionException {
-            while (!done) {
-                wait();
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return super.get(timeout, unit);
+            } catch (TimeoutException x) {
+                unregister(this);
+                throw new TimeoutException("Timeout waiting for state: " + state);
             }
-            return null;
         }
-        
-        @Override
-        public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            wait(unit.toMillis(timeout));
-            if (!done) throw new TimeoutException("Timeout waiting for state: "+state);
-            return null;
+
+        void done() {
+            complete(null);
         }
-        
-        synchronized void done() {
-            done = true;
-            notifyAll();
+
+        void timeout() {
+            unregister(this);
+            completeExceptionally(new TimeoutException("Timeout waiting for state: " + state));
         }
     }
-    
 }
@@ -0,0 +1,57 @@
+package toyocsbridge;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The scheduler used by the CCS to drive all simulated hardware timing. As
+ * well as scheduling, the scheduler defines the time seen by the simulation,
+ * which need not be real time.
+ *
+ * @author tonyj
+ */
+interface CCSScheduler extends ScheduledExecutorService {
+
+    /**
+     * The current time, as seen by tasks run by this scheduler.
+     *
+     * @return The time in nanoseconds, relative to an arbitrary origin
+     */
+    long nanoTime();
+
+    /**
+     * @return The number of tasks waiting to run, including any cancelled
+     * tasks which have not yet been removed
+     */
+    int getQueueDepth();
+
+    /**
+     * @return The number of cancelled tasks still waiting in the queue
+     */
+    int getCancelledQueued();
+
+    /**
+     * Create an executor which runs tasks one at a time, in submission order,
+     * consistently with the time seen by this scheduler.
+     *
+     * @param name The name of the executor (used to name any thread created)
+     * @return The executor
+     */
+    default ExecutorService newSerialExecutor(String name) {
+        return Executors.newSingleThreadExecutor(new NamedThreadFactory(name));
+    }
+
+    /**
+     * The executor on which CCS event bus subscribers are run. By default
+     * each subscriber has a thread of its own, which it parks while there
+     * are no events.
+     *
+     * @return The executor, or <code>null</code> to give each subscriber its
+     * own thread
+     */
+    default Executor getSubscriberExecutor() {
+        return null;
+    }
+}
@@ -0,0 +1,85 @@
+package toyocsbridge;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * The {@link CommandStatistics} of each type of OCS command run by an
+ * executor. Statistics are created the first time a command of each type is
+ * received, and once {@link #registerMBeans(String)} has been called are
+ * published as MBeans named
+ * <code>toyocsbridge:type=CommandStatistics,instance=&lt;instance&gt;,name=&lt;command&gt;</code>,
+ * where the instance distinguishes the bridges in one JVM.
+ *
+ * @author tonyj
+ */
+class CommandMetrics {
+
+    private static final Logger logger = Logger.getLogger(CommandMetrics.class.getName());
+    private static final String DOMAIN = "toyocsbridge";
+
+    private final ConcurrentMap<Class<?>, CommandStatistics> statistics = new ConcurrentHashMap<>();
+    private final Function<Class<?>, CommandStatistics> factory = this::create;
+    private volatile MBeanServer server;
+    private volatile String instance;
+
+    /**
+     * Get the statistics for a command's type.
+     *
+     * @param command The command
+     * @return The statistics
+     */
+    CommandStatistics get(OCSCommand command) {
+        // Look up first, computeIfAbsent locks even when the entry exists
+        CommandStatistics result = statistics.get(command.getClass());
+        return result != null ? result : statistics.computeIfAbsent(command.getClass(), factory);
+    }
+
+    List<CommandStatistics> getAll() {
+        return new ArrayList<>(statistics.values());
+    }
+
+    /**
+     * Publish the statistics, including those for command types first seen
+     * later, in the platform MBean server.
+     *
+     * @param instance The name of the bridge's CCS instance, see
+     * {@link CCS#getName()}
+     */
+    synchronized void registerMBeans(String instance) {
+        if (server == null) {
+            this.instance = instance;
+            server = ManagementFactory.getPlatformMBeanServer();
+            for (CommandStatistics s : statistics.values()) {
+                register(s);
+            }
+        }
+    }
+
+    private CommandStatistics create(Class<?> commandClass) {
+        String name = commandClass.getSimpleName().isEmpty() ? commandClass.getName() : commandClass.getSimpleName();
+        CommandStatistics result = new CommandStatistics(name);
+        if (server != null) {
+            register(result);
+        }
+        return result;
+    }
+
+    private void register(CommandStatistics s) {
+        try {
+            server.registerMBean(s, new ObjectName(DOMAIN + ":type=CommandStatistics,instance=" + instance + ",name=" + s.getCommand()));
+        } catch (JMException x) {
+            logger.log(Level.WARNING, "Unable to register statistics for " + s.getCommand(), x);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package toyocsbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Polls a set of command topics which only offer a non-blocking accept, such
+ * as the SAL command topics, from a single thread. Receipt is polled, not
+ * event driven: the SAL Java binding has no blocking or callback accept, so
+ * nothing wakes the poller when a command arrives. Every topic is polled in
+ * each round. While commands are arriving rounds follow each other without a
+ * pause; once a round finds nothing the poller yields for a few rounds, and
+ * then parks for an exponentially growing time, up to a maximum.
+ * <p>
+ * The maximum park time bounds the latency of a command arriving at an idle
+ * poller: in the worst case a command waits for the maximum park time, plus
+ * the operating system's timer slack, plus one polling round. With the
+ * default of 10ms the measured p99 latency is about 11ms (see
+ * AcceptLatencyBenchmark). A shorter maximum lowers the latency, at the cost
+ * of an idle poller waking up more often. It is set in milliseconds with the
+ * <code>toyocsbridge.poller.maxPark</code> system property.
+ *
+ * @author tonyj
+ */
+class CommandPoller implements Runnable {
+
+    /**
+     * The maximum park time of an idle poller, unless given explicitly.
+     */
+    static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("toyocsbridge.poller.maxPark", 10));
+    /**
+     * Number of empty rounds before the poller starts to park
+     */
+    private static final int YIELD_ROUNDS = 10;
+    /**
+     * The first park time of an idle poller
+     */
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final List<Topic> topics;
+    private final long maxIdleParkNanos;
+    private volatile boolean shutdown = false;
+    private volatile Thread thread;
+
+    /**
+     * A command topic.
+     */
+    interface Topic {
+
+        /**
+         * Accept the next command from the topic, if there is one, and pass it
+         * on for execution. Must not block.
+         *
+         * @return <code>true</code> if a command was accepted
+         */
+        boolean accept();
+    }
+
+    /**
+     * Create a poller.
+     *
+     * @param topics The topics to poll
+     * @param maxIdleParkNanos The maximum time an idle poller parks for
+     */
+    CommandPoller(List<? extends Topic> topics, long maxIdleParkNanos) {
+        this.topics = new ArrayList<>(topics);
+        this.maxIdleParkNanos = maxIdleParkNanos;
+    }
+
+    /**
+     * Poll the topics until shut down.
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        int idleRounds = 0;
+        while (!shutdown) {
+            boolean accepted = false;
+            for (Topic topic : topics) {
+                accepted |= topic.accept();
+            }
+            if (accepted) {
+                idleRounds = 0;
+            } else if (idleRounds < YIELD_ROUNDS) {
+                idleRounds++;
+                Thread.yield();
+            } else {
+                int doublings = Math.min(idleRounds - YIELD_ROUNDS, 20);
+                idleRounds++;
+                LockSupport.parkNanos(this, Math.min(MIN_IDLE_PARK_NANOS << doublings, maxIdleParkNanos));
+            }
+        }
+    }
+
+    /**
+     * Stop polling, causing {@link #run()} to return.
+     */
+    void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(thread);
+    }
+}
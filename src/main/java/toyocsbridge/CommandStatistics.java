@@ -0,0 +1,97 @@
+package toyocsbridge;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and outcome counts for one type of OCS command.
+ *
+ * @author tonyj
+ */
+class CommandStatistics implements CommandStatisticsMXBean {
+
+    private final String command;
+    final LatencyHistogram preconditions = new LatencyHistogram();
+    final LatencyHistogram ack = new LatencyHistogram();
+    final LatencyHistogram execute = new LatencyHistogram();
+    final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    CommandStatistics(String command) {
+        this.command = command;
+    }
+
+    void commandCompleted(long totalNanos) {
+        completed.incrementAndGet();
+        total.record(totalNanos);
+    }
+
+    void commandFailed(long totalNanos) {
+        failed.incrementAndGet();
+        total.record(totalNanos);
+    }
+
+    void commandRejected(long ackNanos) {
+        rejected.incrementAndGet();
+        ack.record(ackNanos);
+    }
+
+    @Override
+    public String getCommand() {
+        return command;
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public LatencySummary getPreconditions() {
+        return preconditions.getSummary();
+    }
+
+    @Override
+    public LatencySummary getAck() {
+        return ack.getSummary();
+    }
+
+    @Override
+    public LatencySummary getExecute() {
+        return execute.getSummary();
+    }
+
+    @Override
+    public LatencySummary getTotal() {
+        return total.getSummary();
+    }
+
+    @Override
+    public void reset() {
+        preconditions.reset();
+        ack.reset();
+        execute.reset();
+        total.reset();
+        completed.set(0);
+        rejected.set(0);
+        failed.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return command + " completed=" + completed + " rejected=" + rejected + " failed=" + failed
+                + "\n  preconditions " + getPreconditions() + "\n  ack           " + getAck()
+                + "\n  execute       " + getExecute() + "\n  total         " + getTotal();
+    }
+}
@@ -0,0 +1,56 @@
+package toyocsbridge;
+
+/**
+ * The timing and outcomes of one type of OCS command, as published over JMX.
+ *
+ * @author tonyj
+ */
+public interface CommandStatisticsMXBean {
+
+    /**
+     * @return The name of the command
+     */
+    String getCommand();
+
+    /**
+     * @return The number of commands which completed successfully
+     */
+    long getCompleted();
+
+    /**
+     * @return The number of commands which were rejected
+     */
+    long getRejected();
+
+    /**
+     * @return The number of commands which failed after being accepted
+     */
+    long getFailed();
+
+    /**
+     * @return The time taken to test the command's preconditions
+     */
+    LatencySummary getPreconditions();
+
+    /**
+     * @return The time from the command being received to it being
+     * acknowledged or rejected
+     */
+    LatencySummary getAck();
+
+    /**
+     * @return The time taken to execute the command
+     */
+    LatencySummary getExecute();
+
+    /**
+     * @return The time from the command being received to it completing or
+     * failing, including any time spent queued
+     */
+    LatencySummary getTotal();
+
+    /**
+     * Clear all the histograms and counters.
+     */
+    void reset();
+}
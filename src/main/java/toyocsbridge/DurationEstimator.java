@@ -0,0 +1,145 @@
+package toyocsbridge;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Learns how long commands take from their observed completion times, so that
+ * the timeout sent to OCS with each acknowledgment is a tight, high
+ * percentile estimate rather than a worst case. Durations are learned
+ * separately for each key, which a command builds from its type and the
+ * parameters and state which determine how long it takes.
+ * <p>
+ * Each key keeps a window of its most recent durations. The estimate is
+ * recomputed whenever a duration is recorded, so looking it up is a single
+ * map lookup. Until a key has been seen {@link #MIN_SAMPLES} times the worst
+ * case given by the command is used instead. Commands should build keys from
+ * a bounded set of values, but since their parameters come from OCS the
+ * number of keys is also capped, the least recently used key being dropped
+ * when the cap is reached. Learning can be switched off,
+ * which restores the worst case estimates, with the
+ * <code>toyocsbridge.learnedTimeouts</code> system property.
+ *
+ * @author tonyj
+ */
+class DurationEstimator {
+
+    /**
+     * The number of durations needed before an estimate is learned.
+     */
+    static final int MIN_SAMPLES = 5;
+    /**
+     * The number of recent durations kept for each key.
+     */
+    private static final int WINDOW = Integer.getInteger("toyocsbridge.estimator.window", 100);
+    /**
+     * The maximum number of keys for which durations are kept.
+     */
+    private static final int MAX_KEYS = Integer.getInteger("toyocsbridge.estimator.maxKeys", 1000);
+    /**
+     * The fraction of commands expected to complete within the estimate.
+     */
+    private static final double PERCENTILE = Double.parseDouble(System.getProperty("toyocsbridge.estimator.percentile", "0.99"));
+    /**
+     * Added to the percentile, as a fraction of it, to allow for durations not
+     * yet seen.
+     */
+    private static final double MARGIN = Double.parseDouble(System.getProperty("toyocsbridge.estimator.margin", "0.01"));
+    /**
+     * A zero estimate means the command is not acknowledged, so a learned
+     * estimate is never shorter than this.
+     */
+    private static final long MIN_ESTIMATE = Duration.ofMillis(1).toNanos();
+
+    private final Map<String, Window> windows = Collections.synchronizedMap(new LinkedHashMap<String, Window>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+            return size() > MAX_KEYS;
+        }
+    });
+    private volatile boolean enabled = Boolean.parseBoolean(System.getProperty("toyocsbridge.learnedTimeouts", "true"));
+
+    /**
+     * Estimate how long a command will take.
+     *
+     * @param key The key describing the command
+     * @param known A part of the duration which is known in advance, and so
+     * was not recorded, see {@link #record(String, long)}
+     * @param worstCase The worst case duration, used if nothing has been
+     * learned for the key
+     * @return The estimated duration
+     */
+    Duration estimate(String key, Duration known, Duration worstCase) {
+        if (!enabled) {
+            return worstCase;
+        }
+        Window window = windows.get(key);
+        long estimate = window == null ? -1 : window.estimate;
+        return estimate < 0 ? worstCase : known.plusNanos(estimate);
+    }
+
+    /**
+     * Record how long a command took. Durations are recorded even when
+     * learning is switched off, so that estimates are ready if it is switched
+     * on.
+     *
+     * @param key The key describing the command
+     * @param nanos The duration in nanoseconds, excluding any part known in
+     * advance
+     */
+    void record(String key, long nanos) {
+        windows.computeIfAbsent(key, k -> new Window()).record(Math.max(0, nanos));
+    }
+
+    /**
+     * Choose between learned and worst case estimates.
+     *
+     * @param enabled <code>true</code> to use learned estimates
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The number of keys for which durations have been recorded
+     */
+    int getKeyCount() {
+        return windows.size();
+    }
+
+    /**
+     * The most recent durations for one key, and the estimate derived from
+     * them.
+     */
+    private static class Window {
+
+        private final long[] durations = new long[WINDOW];
+        private final long[] sorted = new long[WINDOW];
+        private long count;
+        /**
+         * The learned estimate, or -1 if not enough durations have been seen.
+         */
+        private volatile long estimate = -1;
+
+        synchronized void record(long nanos) {
+            durations[(int) (count++ % WINDOW)] = nanos;
+            if (count < MIN_SAMPLES) {
+                return;
+            }
+            int n = (int) Math.min(count, WINDOW);
+            System.arraycopy(durations, 0, sorted, 0, n);
+            Arrays.sort(sorted, 0, n);
+            long value = sorted[Math.max(0, (int) Math.ceil(PERCENTILE * n) - 1)];
+            estimate = Math.max(MIN_ESTIMATE, value + (long) (value * MARGIN));
+        }
+    }
+}
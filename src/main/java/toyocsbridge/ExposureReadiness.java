@@ -0,0 +1,103 @@
+package toyocsbridge;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decides what must be done to get the rafts and shutter ready for an
+ * exposure. Each is only acted on if it will not otherwise be ready when the
+ * exposure starts: the rafts are cleared if they need a clear, or will need
+ * one before then (see {@link Rafts#QUIESCENT_BEFORE_CLEAR}), and the shutter
+ * is prepared only if it is going to be opened and it is not ready, or its
+ * readiness will lapse before then (see {@link Shutter#READY_TIME}). Actions
+ * for an exposure which starts later are scheduled just in time, and decided
+ * when they run rather than when they are scheduled.
+ *
+ * @author tonyj
+ */
+class ExposureReadiness {
+
+    /**
+     * The condition for starting an exposure which opens the shutter: the
+     * rafts have been cleared, and the shutter has been prepared.
+     */
+    static final StatusPredicate READY_TO_EXPOSE = StatusPredicate.allOf(Rafts.RaftsState.QUIESCENT, Shutter.ShutterReadinessState.READY);
+    /**
+     * The condition for starting an exposure with the shutter closed.
+     */
+    static final StatusPredicate READY_FOR_DARK = StatusPredicate.allOf(Rafts.RaftsState.QUIESCENT);
+
+    private final CCS ccs;
+    private final Rafts rafts;
+    private final Shutter shutter;
+
+    ExposureReadiness(CCS ccs, Rafts rafts, Shutter shutter) {
+        this.ccs = ccs;
+        this.rafts = rafts;
+        this.shutter = shutter;
+    }
+
+    /**
+     * Get ready for an exposure starting as soon as possible, which is when
+     * the rafts finish any readout or clear in progress, and wait until
+     * ready.
+     *
+     * @param openShutter <code>true</code> if the shutter will be opened
+     * @param timeout The maximum time to wait
+     * @return A stage which completes when the exposure can start
+     */
+    CompletableFuture<Void> prepare(boolean openShutter, Duration timeout) {
+        // The shutter must still be ready when the rafts become free
+        prepareAhead(openShutter, rafts.getTimeUntilIdle());
+        return ccs.waitForAsync(openShutter ? READY_TO_EXPOSE : READY_FOR_DARK, timeout);
+    }
+
+    /**
+     * Arrange for the rafts and, if it will be opened, the shutter to be
+     * ready for an exposure expected to start after the given time. Any
+     * clear or prepare is scheduled to finish just as the exposure starts.
+     *
+     * @param openShutter <code>true</code> if the shutter will be opened
+     * @param startIn The time until the exposure is expected to start
+     */
+    void prepareAhead(boolean openShutter, Duration startIn) {
+        long start = ccs.nanoTime() + startIn.toNanos();
+        runAt(start - Rafts.CLEAR_TIME.toNanos(), () -> {
+            if (rafts.needsClear(until(start))) {
+                rafts.clear(1);
+            }
+        });
+        if (openShutter) {
+            prepareShutterAhead(startIn);
+        }
+    }
+
+    /**
+     * Arrange for the shutter to be ready for an exposure expected to start
+     * after the given time. This can be used while the rafts are still
+     * reading out the previous image.
+     *
+     * @param startIn The time until the exposure is expected to start
+     */
+    void prepareShutterAhead(Duration startIn) {
+        long start = ccs.nanoTime() + startIn.toNanos();
+        runAt(start - Shutter.PREP_TIME.toNanos(), () -> {
+            if (shutter.needsPrepare(until(start))) {
+                shutter.prepare();
+            }
+        });
+    }
+
+    private Duration until(long time) {
+        return Duration.ofNanos(Math.max(0, time - ccs.nanoTime()));
+    }
+
+    private void runAt(long time, Runnable action) {
+        long delay = time - ccs.nanoTime();
+        if (delay <= 0) {
+            action.run();
+        } else {
+            ccs.schedule(Duration.ofNanos(delay), action);
+        }
+    }
+}
@@ -4,10 +4,7 @@ import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A trivial Filter simulation.
@@ -26,8 +23,8 @@ public class Filter {
     static final Duration UNLOAD_TIME = Duration.ofMillis(15000);
 
     private List<String> availableFilters = Arrays.asList(new String[]{"u-10", "g-9", "r-1", "i-9", "x-100"});
-    private String currentFilter;
-    private int currentRotationPosition = 0;
+    private volatile String currentFilter;
+    private volatile int currentRotationPosition = 0;
 
     private final State filterState;
     private final CCS ccs;
@@ -45,41 +42,98 @@ public class Filter {
         return Collections.unmodifiableList(availableFilters);
     }
 
-    void setFilter(String filter) throws InterruptedException, ExecutionException, TimeoutException {
+    /**
+     * @return The filter currently loaded, or <code>null</code> if none
+     */
+    String getCurrentFilter() {
+        return currentFilter;
+    }
+
+    /**
+     * @return The current rotation of the carousel, in degrees
+     */
+    int getRotationPosition() {
+        return currentRotationPosition;
+    }
+
+    /**
+     * @param filter The filter
+     * @return The rotation of the carousel, in degrees, at which the filter
+     * can be loaded
+     */
+    int getRotationPosition(String filter) {
         int position = availableFilters.indexOf(filter);
         if (position < 0) {
             throw new IllegalArgumentException("Invalid filter: " + filter);
-        } else if (filter.equals(currentFilter)) {
-            // No-op?
-        } else {
+        }
+        return position * 360 / availableFilters.size();
+    }
 
-            if (currentFilter != null) {
+    /**
+     * Predict how long {@link #setFilter(String)} takes: unloading the
+     * current filter (if any), rotating the carousel and loading the new
+     * filter.
+     *
+     * @param from The filter loaded, or <code>null</code> if none
+     * @param rotation The rotation of the carousel, in degrees
+     * @param to The filter to load
+     * @return The time taken to change filter
+     */
+    Duration getChangeTime(String from, int rotation, String to) {
+        if (to.equals(from)) {
+            return Duration.ZERO;
+        }
+        Duration result = from != null ? UNLOAD_TIME : Duration.ZERO;
+        int degreesToRotate = Math.abs(rotation - getRotationPosition(to)) % 360;
+        return result.plus(ROTATION_TIME_PER_DEGREE.multipliedBy(degreesToRotate)).plus(LOAD_TIME);
+    }
+
+    /**
+     * Change the filter. The filter change proceeds without blocking the
+     * caller, the returned stage completes once the new filter is loaded.
+     *
+     * @param filter The filter to load
+     * @return A stage which completes when the filter change is complete
+     */
+    CompletableFuture<Void> setFilter(String filter) {
+        int targetRotation = getRotationPosition(filter);
+        CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+        if (filter.equals(currentFilter)) {
+            // No-op?
+            return result;
+        }
+        if (currentFilter != null) {
+            result = result.thenCompose(v -> {
                 filterState.setState(FilterState.UNLOADING);
-                Future<Void> waitForUnloaded = ccs.waitForStatus(FilterState.UNLOADED);
+                CompletableFuture<Void> waitForUnloaded = ccs.waitForStatusAsync(FilterState.UNLOADED, UNLOAD_TIME.multipliedBy(2));
                 ccs.schedule(UNLOAD_TIME, () -> {
                     filterState.setState(FilterState.UNLOADED);
                     currentFilter = null;
                 });
-                waitForUnloaded.get(UNLOAD_TIME.toMillis() * 2, TimeUnit.MILLISECONDS);
-            }
-            int targetRotation = position * 360 / 5;
-            if (currentRotationPosition != targetRotation) {
-                int degreesToRotate = Math.abs(currentRotationPosition - targetRotation) % 360;
+                return waitForUnloaded;
+            });
+        }
+        if (currentRotationPosition != targetRotation) {
+            int degreesToRotate = Math.abs(currentRotationPosition - targetRotation) % 360;
+            result = result.thenCompose(v -> {
                 filterState.setState(FilterState.ROTATING);
-                Future<Void> waitForRotation = ccs.waitForStatus(FilterState.UNLOADED);
                 Duration rotationTime = ROTATION_TIME_PER_DEGREE.multipliedBy(degreesToRotate);
+                CompletableFuture<Void> waitForRotation = ccs.waitForStatusAsync(FilterState.UNLOADED, rotationTime.multipliedBy(2));
                 ccs.schedule(rotationTime, () -> {
+                    currentRotationPosition = targetRotation;
                     filterState.setState(FilterState.UNLOADED);
                 });
-                waitForRotation.get(rotationTime.toMillis() * 2, TimeUnit.MILLISECONDS);
-            }
+                return waitForRotation;
+            });
+        }
+        return result.thenCompose(v -> {
             filterState.setState(FilterState.LOADING);
-            Future<Void> waitForUnloaded = ccs.waitForStatus(FilterState.LOADED);
+            CompletableFuture<Void> waitForLoaded = ccs.waitForStatusAsync(FilterState.LOADED, LOAD_TIME.multipliedBy(2));
             ccs.schedule(LOAD_TIME, () -> {
                 filterState.setState(FilterState.LOADED);
                 currentFilter = filter;
             });
-            waitForUnloaded.get(LOAD_TIME.toMillis() * 2, TimeUnit.MILLISECONDS);
-        }
+            return waitForLoaded;
+        });
     }
 }
@@ -0,0 +1,460 @@
+package toyocsbridge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import toyocsbridge.OCSCommandExecutor.CCSCommand;
+import toyocsbridge.OCSCommandExecutor.CommandListener;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * An append only binary journal of state transitions and OCS commands. The
+ * journal is written through memory mapped segment files of a fixed size,
+ * named <code>journal-NNNNNN.dat</code>, a new segment being started when the
+ * current one is full. Each segment starts with a header followed by a
+ * definition of every known state, so each segment can be read on its own.
+ * <p>
+ * State transitions are written by a subscriber to the CCS event bus, so
+ * journaling adds nothing to the state change path. Command events are
+ * written directly from the command executor, they are rare and cheap to
+ * write. Both OCS commands and CCS commands (which have a cmdId of zero) are
+ * recorded with their arguments, so a session can be re-run with
+ * {@link Replay}. All records carry the CCS time, so transitions and commands
+ * can be put in order when the journal is read back with
+ * {@link JournalReader}.
+ * <p>
+ * Data written to a mapped buffer survives the process crashing, but not the
+ * machine crashing unless {@link #flush} has been called. A full segment is
+ * forced to disk, closed and unmapped on a background thread, so starting a
+ * new segment does not hold up the commands and transitions being written.
+ * If a new segment cannot be opened the journal is closed, and the bridge
+ * carries on without it.
+ *
+ * @author tonyj
+ */
+class Journal implements CommandListener, Closeable {
+
+    private static final Logger logger = Logger.getLogger(Journal.class.getName());
+
+    static final int MAGIC = 0x4a524e4c;
+    static final short VERSION = 1;
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Record types. A zero type marks the end of the data in a segment.
+    static final byte END = 0;
+    static final byte STATE = 1;
+    static final byte TRANSITION = 2;
+    static final byte GAP = 3;
+    static final byte RECEIVED = 10;
+    static final byte ACKNOWLEDGED = 11;
+    static final byte REJECTED = 12;
+    static final byte COMPLETED = 13;
+    static final byte FAILED = 14;
+
+    // Argument types
+    static final byte INT = 'I';
+    static final byte DOUBLE = 'D';
+    static final byte BOOLEAN = 'Z';
+    static final byte STRING = 'S';
+
+    private static final int TRANSITION_SIZE = 1 + 2 + 2 + 2 + 8;
+    private static final int MAX_STRING = Short.MAX_VALUE;
+
+    private final CCS ccs;
+    private final Path directory;
+    private final int segmentSize;
+    private final StateEventBus.Subscription subscription;
+    /**
+     * Used to build variable length records before copying them to the
+     * segment.
+     */
+    private final ByteBuffer scratch = ByteBuffer.allocate(1024 * 1024);
+    /**
+     * Forces, closes and unmaps full segments.
+     */
+    private final ExecutorService retirer = Executors.newSingleThreadExecutor(new NamedThreadFactory("JournalRetirer"));
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentNumber = 0;
+    /**
+     * The value of each state as seen by the journal, which lags behind the
+     * actual state, indexed by state id. -1 if the state has not been
+     * defined in the journal yet.
+     */
+    private int[] ordinals = new int[0];
+    private long missed = 0;
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Open a new journal. Existing segments in the directory are left alone,
+     * the journal starts with the segment after the last one found.
+     *
+     * @param ccs The CCS whose state changes are to be journaled
+     * @param directory The directory in which to write the journal
+     * @throws IOException If the journal cannot be created
+     */
+    Journal(CCS ccs, Path directory) throws IOException {
+        this(ccs, directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    Journal(CCS ccs, Path directory, int segmentSize) throws IOException {
+        this.ccs = ccs;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        for (Path existing : JournalReader.segments(directory)) {
+            segmentNumber = Math.max(segmentNumber, JournalReader.segmentNumber(existing) + 1);
+        }
+        AggregateStatus as = ccs.getAggregateStatus();
+        synchronized (this) {
+            for (State<?> state : as.getStates()) {
+                define(state, state.getState().ordinal());
+            }
+            openSegment();
+        }
+        subscription = ccs.subscribe("Journal", this::transition);
+    }
+
+    /**
+     * Open a journal for the given bridge if the
+     * <code>toyocsbridge.journal</code> system property is set to the
+     * directory in which to write it.
+     *
+     * @param bridge The bridge to journal
+     * @return The journal, or <code>null</code> if journaling is not enabled
+     */
+    static Journal openIfConfigured(ToyOCSBridge bridge) {
+        String dir = System.getProperty("toyocsbridge.journal");
+        if (dir == null) {
+            return null;
+        }
+        try {
+            Journal journal = new Journal(bridge.getCCS(), Paths.get(dir));
+            journal.attach(bridge);
+            return journal;
+        } catch (IOException x) {
+            logger.log(Level.WARNING, "Unable to open journal in " + dir + ", continuing without journal", x);
+            return null;
+        }
+    }
+
+    /**
+     * Journal the commands executed by the given bridge.
+     *
+     * @param bridge The bridge
+     */
+    void attach(ToyOCSBridge bridge) {
+        bridge.addCommandListener(this);
+    }
+
+    private synchronized void transition(State<?> state, Enum oldState, Enum newState, long timestamp) {
+        if (closed) {
+            return;
+        }
+        long nowMissed = subscription == null ? 0 : subscription.getMissed();
+        if (nowMissed != missed) {
+            scratch.clear();
+            scratch.put(GAP).putLong(nowMissed - missed).putLong(timestamp);
+            missed = nowMissed;
+            writeScratch();
+        }
+        int id = state.getId();
+        if (id >= ordinals.length || ordinals[id] < 0) {
+            define(state, oldState.ordinal());
+            writeDefinition(state);
+        }
+        ordinals[id] = newState.ordinal();
+        if (closed || !hasRoom(TRANSITION_SIZE) && !nextSegment(TRANSITION_SIZE)) {
+            return;
+        }
+        segment.put(TRANSITION).putShort((short) id).putShort((short) oldState.ordinal()).putShort((short) newState.ordinal()).putLong(timestamp);
+        recordCount++;
+    }
+
+    @Override
+    public void commandReceived(OCSCommand command) {
+        writeReceived(command.getCmdId(), command.getClass().getSimpleName(), command.getArguments());
+    }
+
+    @Override
+    public void commandReceived(CCSCommand command) {
+        // CCS commands have no cmdId and no arguments
+        writeReceived(0, command.getClass().getSimpleName(), new Object[0]);
+    }
+
+    private synchronized void writeReceived(int cmdId, String name, Object[] args) {
+        if (closed) {
+            return;
+        }
+        scratch.clear();
+        scratch.put(RECEIVED).putInt(cmdId).putLong(ccs.nanoTime());
+        putString(name);
+        scratch.put((byte) args.length);
+        for (Object arg : args) {
+            if (arg instanceof Integer) {
+                scratch.put(INT).putInt((Integer) arg);
+            } else if (arg instanceof Double) {
+                scratch.put(DOUBLE).putDouble((Double) arg);
+            } else if (arg instanceof Boolean) {
+                scratch.put(BOOLEAN).put((byte) ((Boolean) arg ? 1 : 0));
+            } else {
+                scratch.put(STRING);
+                putString(String.valueOf(arg));
+            }
+        }
+        writeScratch();
+    }
+
+    @Override
+    public synchronized void commandAcknowledged(OCSCommand command, Duration timeout) {
+        if (!closed) {
+            startCommandRecord(ACKNOWLEDGED, command);
+            scratch.putLong(timeout.toNanos());
+            writeScratch();
+        }
+    }
+
+    @Override
+    public synchronized void commandRejected(OCSCommand command, String reason) {
+        if (!closed) {
+            startCommandRecord(REJECTED, command);
+            putString(reason);
+            writeScratch();
+        }
+    }
+
+    @Override
+    public synchronized void commandCompleted(OCSCommand command) {
+        if (!closed) {
+            startCommandRecord(COMPLETED, command);
+            writeScratch();
+        }
+    }
+
+    @Override
+    public synchronized void commandFailed(OCSCommand command, Exception ex) {
+        if (!closed) {
+            startCommandRecord(FAILED, command);
+            putString(String.valueOf(ex.getMessage()));
+            writeScratch();
+        }
+    }
+
+    private void startCommandRecord(byte type, OCSCommand command) {
+        scratch.clear();
+        scratch.put(type).putInt(command.getCmdId()).putLong(ccs.nanoTime());
+    }
+
+    private void putString(String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING);
+        scratch.putShort((short) length).put(bytes, 0, length);
+    }
+
+    private void define(State<?> state, int ordinal) {
+        int id = state.getId();
+        if (id >= ordinals.length) {
+            int oldLength = ordinals.length;
+            ordinals = Arrays.copyOf(ordinals, id + 1);
+            Arrays.fill(ordinals, oldLength, ordinals.length, -1);
+        }
+        ordinals[id] = ordinal;
+    }
+
+    private void writeDefinition(State<?> state) {
+        Enum[] values = state.getEnumClass().getEnumConstants();
+        scratch.clear();
+        scratch.put(STATE).putShort((short) state.getId()).putShort((short) ordinals[state.getId()]);
+        putString(state.getEnumClass().getName());
+        scratch.putShort((short) values.length);
+        for (Enum value : values) {
+            putString(value.name());
+        }
+        writeScratch();
+    }
+
+    private void writeScratch() {
+        if (closed) {
+            // Opening a new segment failed earlier in this call
+            return;
+        }
+        scratch.flip();
+        int size = scratch.remaining();
+        if (!hasRoom(size)) {
+            // Starting a segment writes the state definitions, which reuses the scratch buffer
+            byte[] record = new byte[size];
+            scratch.get(record);
+            if (!nextSegment(size)) {
+                return;
+            }
+            segment.put(record);
+        } else {
+            segment.put(scratch);
+        }
+        recordCount++;
+    }
+
+    /**
+     * Test if there is room for a record, and for the end marker after it, in
+     * the current segment.
+     */
+    private boolean hasRoom(int size) {
+        return segment.remaining() >= size + 1;
+    }
+
+    /**
+     * Start a new segment, and hand the full one to the retirer. If the new
+     * segment cannot be opened the full segment stays current, and the
+     * journal is closed.
+     *
+     * @return <code>true</code> if the new segment was started
+     */
+    private boolean nextSegment(int size) {
+        MappedByteBuffer full = segment;
+        FileChannel fullChannel = channel;
+        try {
+            openSegment();
+        } catch (IOException x) {
+            logger.log(Level.SEVERE, "Unable to open journal segment, closing journal", x);
+            closed = true;
+            return false;
+        }
+        retire(full, fullChannel);
+        if (!hasRoom(size)) {
+            throw new IllegalStateException("Record too large for journal segment: " + size);
+        }
+        return true;
+    }
+
+    private void openSegment() throws IOException {
+        Path file = directory.resolve(String.format("journal-%06d.dat", segmentNumber));
+        FileChannel newChannel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            segment = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException x) {
+            newChannel.close();
+            Files.deleteIfExists(file);
+            throw x;
+        }
+        channel = newChannel;
+        segment.putInt(MAGIC).putShort(VERSION).putInt(segmentNumber).putLong(System.currentTimeMillis()).putLong(ccs.nanoTime());
+        segmentNumber++;
+        AggregateStatus as = ccs.getAggregateStatus();
+        for (int id = 0; id < ordinals.length; id++) {
+            if (ordinals[id] >= 0) {
+                writeDefinition(as.getState(id));
+            }
+        }
+        logger.log(Level.INFO, "Journal segment opened: {0}", file);
+    }
+
+    /**
+     * Force a segment which is no longer being written to disk, close it and
+     * unmap it, on the retirer thread. The segment must not be touched
+     * afterwards.
+     */
+    private void retire(MappedByteBuffer buffer, FileChannel bufferChannel) {
+        retirer.execute(() -> {
+            // The rest of the segment is already zero, which marks the end of the data
+            buffer.force();
+            try {
+                bufferChannel.close();
+            } catch (IOException x) {
+                logger.log(Level.WARNING, "Error closing journal segment", x);
+            }
+            unmap(buffer);
+        });
+    }
+
+    /**
+     * Release the mapping of a retired segment now, rather than whenever the
+     * buffer is garbage collected. There is no public API for this, so it is
+     * done reflectively; if that fails the mapping is left to the garbage
+     * collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                // Java 9 and later
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException x) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            logger.log(Level.FINE, "Unable to unmap journal segment", x);
+        }
+    }
+
+    /**
+     * Force everything written so far out to disk.
+     */
+    synchronized void flush() {
+        if (!closed) {
+            segment.force();
+        }
+    }
+
+    /**
+     * @return The number of records written
+     */
+    synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return The number of transitions which were never journaled because
+     * the journal fell too far behind the event bus.
+     */
+    synchronized long getMissed() {
+        return missed;
+    }
+
+    /**
+     * Close the journal, and wait for all its segments to be written to disk.
+     */
+    @Override
+    public void close() {
+        subscription.close();
+        synchronized (this) {
+            closed = true;
+            if (segment != null) {
+                retire(segment, channel);
+                segment = null;
+                channel = null;
+            }
+        }
+        retirer.shutdown();
+        try {
+            if (!retirer.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warning("Timed out writing journal segments to disk");
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package toyocsbridge;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back a journal written by {@link Journal}.
+ *
+ * @author tonyj
+ */
+class JournalReader {
+
+    private final Path directory;
+
+    JournalReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Read all the segments of the journal, in order, passing each record to
+     * the handler.
+     *
+     * @param handler The handler to receive the records
+     * @throws IOException If the journal cannot be read
+     */
+    void read(JournalHandler handler) throws IOException {
+        for (Path file : segments(directory)) {
+            readSegment(file, handler);
+        }
+    }
+
+    private void readSegment(Path file, JournalHandler handler) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != Journal.MAGIC) {
+            throw new IOException("Not a journal segment: " + file);
+        }
+        short version = buffer.getShort();
+        if (version != Journal.VERSION) {
+            throw new IOException("Unsupported journal version " + version + " in " + file);
+        }
+        int segmentNumber = buffer.getInt();
+        long wallTime = buffer.getLong();
+        long timestamp = buffer.getLong();
+        handler.segmentStarted(segmentNumber, wallTime, timestamp);
+        while (buffer.hasRemaining()) {
+            byte type = buffer.get();
+            switch (type) {
+                case Journal.END:
+                    return;
+                case Journal.STATE:
+                    int id = buffer.getShort();
+                    int ordinal = buffer.getShort();
+                    String className = getString(buffer);
+                    String[] values = new String[buffer.getShort()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = getString(buffer);
+                    }
+                    handler.stateDefined(id, className, values, ordinal);
+                    break;
+                case Journal.TRANSITION:
+                    handler.transition(buffer.getShort(), buffer.getShort(), buffer.getShort(), buffer.getLong());
+                    break;
+                case Journal.GAP:
+                    handler.gap(buffer.getLong(), buffer.getLong());
+                    break;
+                case Journal.RECEIVED:
+                    readReceived(buffer, handler);
+                    break;
+                case Journal.ACKNOWLEDGED:
+                    handler.commandAcknowledged(buffer.getInt(), buffer.getLong(), buffer.getLong());
+                    break;
+                case Journal.REJECTED:
+                    handler.commandRejected(buffer.getInt(), buffer.getLong(), getString(buffer));
+                    break;
+                case Journal.COMPLETED:
+                    handler.commandCompleted(buffer.getInt(), buffer.getLong());
+                    break;
+                case Journal.FAILED:
+                    handler.commandFailed(buffer.getInt(), buffer.getLong(), getString(buffer));
+                    break;
+                default:
+                    throw new IOException("Corrupt journal, unknown record type " + type + " at " + (buffer.position() - 1) + " in " + file);
+            }
+        }
+    }
+
+    private void readReceived(ByteBuffer buffer, JournalHandler handler) throws IOException {
+        int cmdId = buffer.getInt();
+        long timestamp = buffer.getLong();
+        String command = getString(buffer);
+        Object[] args = new Object[buffer.get()];
+        for (int i = 0; i < args.length; i++) {
+            byte argType = buffer.get();
+            switch (argType) {
+                case Journal.INT:
+                    args[i] = buffer.getInt();
+                    break;
+                case Journal.DOUBLE:
+                    args[i] = buffer.getDouble();
+                    break;
+                case Journal.BOOLEAN:
+                    args[i] = buffer.get() != 0;
+                    break;
+                case Journal.STRING:
+                    args[i] = getString(buffer);
+                    break;
+                default:
+                    throw new IOException("Corrupt journal, unknown argument type " + argType);
+            }
+        }
+        handler.commandReceived(cmdId, timestamp, command, args);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * List the segments of a journal, in order.
+     *
+     * @param directory The journal directory
+     * @return The segment files
+     * @throws IOException If the directory cannot be read
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.dat")) {
+                for (Path file : files) {
+                    result.add(file);
+                }
+            }
+        }
+        result.sort((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return result;
+    }
+
+    static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring("journal-".length(), name.length() - ".dat".length()));
+    }
+
+    /**
+     * Receives the records read from a journal. All timestamps are CCS times
+     * in nanoseconds.
+     */
+    static interface JournalHandler {
+
+        default void segmentStarted(int segmentNumber, long wallTime, long timestamp) {
+        }
+
+        default void stateDefined(int id, String enumClass, String[] values, int ordinal) {
+        }
+
+        default void transition(int id, int oldOrdinal, int newOrdinal, long timestamp) {
+        }
+
+        default void gap(long missed, long timestamp) {
+        }
+
+        default void commandReceived(int cmdId, long timestamp, String command, Object[] args) {
+        }
+
+        default void commandAcknowledged(int cmdId, long timestamp, long timeout) {
+        }
+
+        default void commandRejected(int cmdId, long timestamp, String reason) {
+        }
+
+        default void commandCompleted(int cmdId, long timestamp) {
+        }
+
+        default void commandFailed(int cmdId, long timestamp, String message) {
+        }
+    }
+
+    /**
+     * Print a journal as text.
+     *
+     * @param args The journal directory
+     * @throws IOException If the journal cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: JournalReader <journal directory>");
+            System.exit(1);
+        }
+        PrintStream out = System.out;
+        List<String> names = new ArrayList<>();
+        List<String[]> values = new ArrayList<>();
+        new JournalReader(Paths.get(args[0])).read(new JournalHandler() {
+            @Override
+            public void segmentStarted(int segmentNumber, long wallTime, long timestamp) {
+                out.printf("Segment %d started %tc%n", segmentNumber, wallTime);
+            }
+
+            @Override
+            public void stateDefined(int id, String enumClass, String[] stateValues, int ordinal) {
+                while (names.size() <= id) {
+                    names.add(null);
+                    values.add(null);
+                }
+                names.set(id, enumClass.substring(enumClass.lastIndexOf('$') + 1));
+                values.set(id, stateValues);
+            }
+
+            @Override
+            public void transition(int id, int oldOrdinal, int newOrdinal, long timestamp) {
+                String[] v = values.get(id);
+                out.printf("%,18d %s: %s->%s%n", timestamp, names.get(id), v[oldOrdinal], v[newOrdinal]);
+            }
+
+            @Override
+            public void gap(long missed, long timestamp) {
+                out.printf("%,18d %d transitions missed%n", timestamp, missed);
+            }
+
+            @Override
+            public void commandReceived(int cmdId, long timestamp, String command, Object[] args) {
+                out.printf("%,18d Received %s(%d) %s%n", timestamp, command, cmdId, Arrays.toString(args));
+            }
+
+            @Override
+            public void commandAcknowledged(int cmdId, long timestamp, long timeout) {
+                out.printf("%,18d Acknowledged %d timeout %,dns%n", timestamp, cmdId, timeout);
+            }
+
+            @Override
+            public void commandRejected(int cmdId, long timestamp, String reason) {
+                out.printf("%,18d Rejected %d because %s%n", timestamp, cmdId, reason);
+            }
+
+            @Override
+            public void commandCompleted(int cmdId, long timestamp) {
+                out.printf("%,18d Completed %d%n", timestamp, cmdId);
+            }
+
+            @Override
+            public void commandFailed(int cmdId, long timestamp, String message) {
+                out.printf("%,18d Failed %d: %s%n", timestamp, cmdId, message);
+            }
+        });
+    }
+}
@@ -0,0 +1,135 @@
+package toyocsbridge;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of durations in nanoseconds, with log-linear
+ * buckets. Each power of two is split into 32 linear buckets, so any value
+ * read back is within about 3% of the true value, over a range from 1ns to
+ * about 18 minutes (longer durations are counted in the last bucket, but
+ * still contribute exactly to the maximum). Recording a value is a few
+ * atomic increments, with no locking and no allocation, so it can be done
+ * on every command.
+ *
+ * @author tonyj
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_TRACKABLE = (1L << 40) - 1;
+    private static final int N_BUCKETS = bucketIndex(MAX_TRACKABLE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos The duration in nanoseconds, negative values are counted
+     * as zero
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketIndex(Math.min(value, MAX_TRACKABLE)));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of all recorded values, in nanoseconds
+     */
+    long getSum() {
+        return sum.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below which the given fraction of the recorded values
+     * fall. The value returned is the upper edge of the bucket containing the
+     * percentile, limited to the maximum recorded value.
+     *
+     * @param fraction The fraction, between 0 and 1
+     * @return The value in nanoseconds, or zero if nothing has been recorded
+     */
+    long getValueAtPercentile(double fraction) {
+        long[] snapshot = new long[N_BUCKETS];
+        long n = 0;
+        for (int i = 0; i < N_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < N_BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return A summary of the histogram, in milliseconds
+     */
+    LatencySummary getSummary() {
+        long n = count.get();
+        return new LatencySummary(n, n == 0 ? 0 : toMillis(sum.get() / n),
+                toMillis(getValueAtPercentile(0.5)), toMillis(getValueAtPercentile(0.99)),
+                toMillis(getValueAtPercentile(0.999)), toMillis(max.get()));
+    }
+
+    /**
+     * Clear the histogram. Values recorded while the histogram is being reset
+     * may or may not be kept.
+     */
+    void reset() {
+        for (int i = 0; i < N_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" + getSummary() + '}';
+    }
+}
@@ -0,0 +1,58 @@
+package toyocsbridge;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A summary of a {@link LatencyHistogram}, as published over JMX. All times
+ * are in milliseconds.
+ *
+ * @author tonyj
+ */
+public class LatencySummary {
+
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    @ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+    public LatencySummary(long count, double mean, double p50, double p99, double p999, double max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getP999() {
+        return p999;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", count, mean, p50, p99, p999, max);
+    }
+}
@@ -0,0 +1,33 @@
+package toyocsbridge;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for maintaining copy on write arrays of listeners. Iterating over
+ * an array, unlike a CopyOnWriteArrayList, does not allocate, which matters
+ * on the state change path.
+ *
+ * @author tonyj
+ */
+class Listeners {
+
+    private Listeners() {
+    }
+
+    static <L> L[] add(L[] listeners, L listener) {
+        L[] result = Arrays.copyOf(listeners, listeners.length + 1);
+        result[listeners.length] = listener;
+        return result;
+    }
+
+    static <L> L[] remove(L[] listeners, L listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener)) {
+                L[] result = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, result, i, listeners.length - i - 1);
+                return result;
+            }
+        }
+        return listeners;
+    }
+}
@@ -0,0 +1,413 @@
+package toyocsbridge;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import toyocsbridge.OCSCommandExecutor.CCSCommand;
+import toyocsbridge.OCSCommandExecutor.CommandListener;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * A closed loop load generator, which drives a {@link ToyOCSBridge} running on
+ * a {@link VirtualTimeScheduler} with OCS traffic resembling a night of
+ * observing, so that the command path can be soak tested over many simulated
+ * days in a few seconds.
+ * <p>
+ * Each night the camera is enabled at dusk and disabled at dawn. During the
+ * night the generator observes in bursts of visits: each visit sends an
+ * <code>initImage</code> with the configured lookahead, followed, once the
+ * lookahead has elapsed, by a <code>takeImages</code>. Between bursts the
+ * telescope slews, and the filter may be changed or the camera disabled and
+ * re-enabled. The loop is closed: the next command is only sent once the
+ * previous one has completed, been rejected or failed. All randomness comes
+ * from a seeded generator, so a run is repeatable.
+ * <p>
+ * At the end of the run the generator reports the accepted command
+ * throughput, the distribution of acknowledgment and completion latency for
+ * each command, how much of the timeout sent to OCS with each
+ * acknowledgment was left when the command completed, the rejection rate
+ * and the fraction of the night the shutter was open. Latencies are
+ * measured on the virtual clock, while the simulation speed, measured
+ * against the wall clock, shows how much load the executor and CCS can
+ * sustain.
+ *
+ * @author tonyj
+ */
+class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    private static final Duration DAY = Duration.ofDays(1);
+    private static final String[] FILTERS = {"u-10", "g-9", "r-1", "i-9", "x-100"};
+
+    private Duration night = Duration.ofHours(10);
+    private double lookahead = 2;
+    private double exposure = 15;
+    private int imagesPerVisit = 2;
+    private int visitsPerBurst = 10;
+    private Duration visitGap = Duration.ofSeconds(3);
+    private Duration slew = Duration.ofSeconds(120);
+    private double filterChangeProbability = 0.2;
+    private double disableProbability = 0.01;
+    private Duration downtime = Duration.ofMinutes(10);
+    private double darkFraction = 0;
+    private boolean pipeline = Boolean.getBoolean("toyocsbridge.pipeline");
+    private boolean learn = Boolean.parseBoolean(System.getProperty("toyocsbridge.learnedTimeouts", "true"));
+    private long seed = 1;
+
+    private VirtualTimeScheduler scheduler;
+    private CCS ccs;
+    private ToyOCSBridge bridge;
+    private Random random;
+    private final Map<Integer, Runnable> outstanding = new HashMap<>();
+    /**
+     * When each acknowledged command is due to complete, by command id.
+     */
+    private final Map<Integer, Long> deadlines = new HashMap<>();
+    private final Map<String, TimeoutStatistics> timeouts = new HashMap<>();
+    private int nextCmdId = 1;
+    private long nightEnd;
+    private int visit;
+    private long sent;
+    private long completed;
+    private long rejected;
+    private long failed;
+
+    /**
+     * Set a parameter of the generated traffic.
+     *
+     * @param name The name of the parameter
+     * @param value The value of the parameter
+     * @throws IllegalArgumentException If the parameter is unknown or the value
+     * is invalid
+     */
+    void configure(String name, String value) {
+        switch (name) {
+            case "night":
+                night = Duration.ofMillis((long) (Double.parseDouble(value) * 3600 * 1000));
+                if (night.isNegative() || night.compareTo(DAY) >= 0) {
+                    throw new IllegalArgumentException("Invalid night length: " + value);
+                }
+                break;
+            case "lookahead":
+                lookahead = Double.parseDouble(value);
+                break;
+            case "exposure":
+                exposure = Double.parseDouble(value);
+                break;
+            case "images":
+                imagesPerVisit = Integer.parseInt(value);
+                break;
+            case "burst":
+                visitsPerBurst = Integer.parseInt(value);
+                break;
+            case "gap":
+                visitGap = Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+                break;
+            case "slew":
+                slew = Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+                break;
+            case "filter":
+                filterChangeProbability = Double.parseDouble(value);
+                break;
+            case "disable":
+                disableProbability = Double.parseDouble(value);
+                break;
+            case "downtime":
+                downtime = Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+                break;
+            case "dark":
+                darkFraction = Double.parseDouble(value);
+                break;
+            case "pipeline":
+                pipeline = Boolean.parseBoolean(value);
+                break;
+            case "learn":
+                learn = Boolean.parseBoolean(value);
+                break;
+            case "seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown parameter: " + name);
+        }
+    }
+
+    /**
+     * Run the generator. The statistics of each simulated day are logged as
+     * it completes.
+     *
+     * @param days The number of days to simulate
+     * @return The report of the run
+     */
+    Report run(int days) {
+        scheduler = new VirtualTimeScheduler();
+        ccs = new CCS(scheduler);
+        bridge = new ToyOCSBridge(ccs);
+        bridge.setPipelined(pipeline);
+        bridge.getDurationEstimator().setEnabled(learn);
+        random = new Random(seed);
+        bridge.addCommandListener(new OutcomeListener());
+        State<Shutter.ShutterState> shutter = (State<Shutter.ShutterState>) ccs.getAggregateStatus().getState(Shutter.ShutterState.class);
+
+        // Bring the camera up to the disabled state, ready for the first night
+        bridge.setAvailable();
+        send(ToyOCSBridge::enterControl, () -> send((b, cmdId) -> b.start(cmdId, "Normal"), null));
+
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastRejected = 0;
+        long lastFailed = 0;
+        Duration lastOpen = Duration.ZERO;
+        List<String> daily = new ArrayList<>();
+        try {
+            for (int day = 0; day < days; day++) {
+                long dusk = DAY.toNanos() * day + TimeUnit.MINUTES.toNanos(1);
+                scheduler.schedule(this::dusk, dusk - scheduler.nanoTime(), TimeUnit.NANOSECONDS);
+                scheduler.runUntil(DAY.toNanos() * (day + 1));
+                Duration open = shutter.getResidency(Shutter.ShutterState.OPEN);
+                String summary = String.format("Day %d: %d commands sent, %d rejected, %d failed, on-sky %.1f%%",
+                        day + 1, sent - lastSent, rejected - lastRejected, failed - lastFailed, 100.0 * open.minus(lastOpen).toNanos() / night.toNanos());
+                logger.info(summary);
+                daily.add(summary);
+                lastSent = sent;
+                lastRejected = rejected;
+                lastFailed = failed;
+                lastOpen = open;
+            }
+        } finally {
+            ccs.shutdown();
+        }
+        return new Report(this, daily, Duration.ofNanos(System.nanoTime() - start), shutter.getResidency(Shutter.ShutterState.OPEN));
+    }
+
+    private void dusk() {
+        nightEnd = ccs.nanoTime() + night.toNanos();
+        send(ToyOCSBridge::enable, this::burst);
+    }
+
+    private void burst() {
+        if (ccs.nanoTime() >= nightEnd) {
+            send(ToyOCSBridge::disable, null);
+            return;
+        }
+        if (random.nextDouble() < disableProbability) {
+            send(ToyOCSBridge::disable, () -> after(downtime, () -> send(ToyOCSBridge::enable, this::burst)));
+        } else if (random.nextDouble() < filterChangeProbability) {
+            String filter = FILTERS[random.nextInt(FILTERS.length)];
+            send((b, cmdId) -> b.setFilter(cmdId, filter), () -> visits(visitsPerBurst));
+        } else {
+            visits(visitsPerBurst);
+        }
+    }
+
+    private void visits(int remaining) {
+        if (remaining == 0 || ccs.nanoTime() >= nightEnd) {
+            after(slew, this::burst);
+            return;
+        }
+        String visitName = "visit" + (++visit);
+        boolean openShutter = random.nextDouble() >= darkFraction;
+        send((b, cmdId) -> b.initImage(cmdId, lookahead), () -> after(Duration.ofMillis((long) (lookahead * 1000)), () -> {
+            send((b, cmdId) -> b.takeImages(cmdId, exposure, imagesPerVisit, openShutter, true, false, false, visitName),
+                    () -> after(visitGap, () -> visits(remaining - 1)));
+        }));
+    }
+
+    private void after(Duration delay, Runnable next) {
+        scheduler.schedule(next, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Send a command to the bridge, and arrange for the next step to be run
+     * once it has finished, whatever the outcome.
+     */
+    private void send(LoopbackTransport.CommandInvocation invocation, Runnable next) {
+        int cmdId = nextCmdId++;
+        sent++;
+        if (next != null) {
+            outstanding.put(cmdId, next);
+        }
+        invocation.invoke(bridge, cmdId);
+    }
+
+    private void finished(OCSCommand command) {
+        deadlines.remove(command.getCmdId());
+        Runnable next = outstanding.remove(command.getCmdId());
+        if (next != null) {
+            // Run the next step from the clock, not from inside the executor
+            scheduler.execute(next);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    /**
+     * The outcome of a run: a line for each simulated day, and the statistics
+     * of the whole run.
+     */
+    static class Report {
+
+        private final List<String> daily;
+        private final Duration wall;
+        private final Duration simulated;
+        private final Duration open;
+        private final Duration night;
+        private final boolean pipeline;
+        private final boolean learn;
+        private final long sent;
+        private final long completed;
+        private final long rejected;
+        private final long failed;
+        private final LatencyHistogram overhead;
+        private final CommandMetrics metrics;
+        private final Map<String, TimeoutStatistics> timeouts;
+
+        private Report(LoadGenerator generator, List<String> daily, Duration wall, Duration open) {
+            this.daily = daily;
+            this.wall = wall;
+            this.simulated = Duration.ofNanos(generator.scheduler.nanoTime());
+            this.open = open;
+            this.night = generator.night;
+            this.pipeline = generator.pipeline;
+            this.learn = generator.learn;
+            this.sent = generator.sent;
+            this.completed = generator.completed;
+            this.rejected = generator.rejected;
+            this.failed = generator.failed;
+            this.overhead = generator.bridge.getImageOverhead();
+            this.metrics = generator.bridge.getCommandMetrics();
+            this.timeouts = new HashMap<>(generator.timeouts);
+        }
+
+        /**
+         * @return A line of statistics for each simulated day
+         */
+        List<String> getDailySummaries() {
+            return daily;
+        }
+
+        /**
+         * Print the daily statistics, followed by a summary of the run.
+         *
+         * @param out Where to print the report
+         */
+        void print(PrintStream out) {
+            for (String day : daily) {
+                out.println(day);
+            }
+            int days = daily.size();
+            out.printf("Simulated %d days (%s) in %s, %.0fx real time%n", days, simulated, wall, (double) simulated.toNanos() / wall.toNanos());
+            long accepted = completed + failed;
+            out.printf("Sent %d commands, %d accepted, %d completed, %d rejected (%.2f%%), %d failed%n",
+                    sent, accepted, completed, rejected, sent == 0 ? 0.0 : 100.0 * rejected / sent, failed);
+            out.printf("Accepted throughput %.1f commands/simulated hour, %.0f commands/wall second%n",
+                    accepted / (simulated.toNanos() / 3.6e12), accepted / (wall.toNanos() / 1e9));
+            out.printf("On-sky duty cycle %.1f%% of %s nights%n", 100.0 * open.toNanos() / night.multipliedBy(days).toNanos(), night);
+            out.printf("Per-image overhead (%s) mean %s p50 %s p99 %s over %d images, %s in total%n", pipeline ? "pipelined" : "serial",
+                    millis(overhead.getCount() == 0 ? 0 : overhead.getSum() / overhead.getCount()), millis(overhead.getValueAtPercentile(0.5)),
+                    millis(overhead.getValueAtPercentile(0.99)), overhead.getCount(), Duration.ofNanos(overhead.getSum()));
+            out.printf("Timeouts %s%n", learn ? "learned" : "worst case");
+            out.printf("%-20s %8s %8s %8s %10s %10s %10s %10s %10s %10s %10s %10s %8s%n",
+                    "Command", "Complete", "Reject", "Fail", "Ack p50", "Ack p99", "Ack max", "Done p50", "Done p99", "Done max",
+                    "Slack p50", "Slack max", "Overrun");
+            for (CommandStatistics s : metrics.getAll()) {
+                TimeoutStatistics t = timeouts.getOrDefault(s.getCommand(), new TimeoutStatistics());
+                out.printf("%-20s %8d %8d %8d %10s %10s %10s %10s %10s %10s %10s %10s %8d%n",
+                        s.getCommand(), s.getCompleted(), s.getRejected(), s.getFailed(),
+                        millis(s.ack.getValueAtPercentile(0.5)), millis(s.ack.getValueAtPercentile(0.99)), millis(s.ack.getMax()),
+                        millis(s.total.getValueAtPercentile(0.5)), millis(s.total.getValueAtPercentile(0.99)), millis(s.total.getMax()),
+                        millis(t.slack.getValueAtPercentile(0.5)), millis(t.slack.getMax()), t.overruns);
+            }
+        }
+    }
+
+    /**
+     * The time left before the timeout sent with the acknowledgment when each
+     * command of one type completed, and the number of commands which took
+     * longer than their timeout.
+     */
+    private static class TimeoutStatistics {
+
+        private final LatencyHistogram slack = new LatencyHistogram();
+        private long overruns;
+    }
+
+    /**
+     * Counts the outcome of each command, and starts the next step of the
+     * loop when a command finishes. Called on the clock.
+     */
+    private class OutcomeListener implements CommandListener {
+
+        @Override
+        public void commandReceived(OCSCommand command) {
+        }
+
+        @Override
+        public void commandReceived(CCSCommand command) {
+        }
+
+        @Override
+        public void commandAcknowledged(OCSCommand command, Duration timeout) {
+            // OCS is sent the timeout in whole seconds
+            deadlines.put(command.getCmdId(), ccs.nanoTime() + TimeUnit.SECONDS.toNanos(OCSCommandExecutor.toAckSeconds(timeout)));
+        }
+
+        @Override
+        public void commandRejected(OCSCommand command, String reason) {
+            rejected++;
+            logger.log(Level.FINE, "{0} rejected: {1}", new Object[]{command, reason});
+            finished(command);
+        }
+
+        @Override
+        public void commandCompleted(OCSCommand command) {
+            completed++;
+            Long deadline = deadlines.get(command.getCmdId());
+            if (deadline != null) {
+                TimeoutStatistics t = timeouts.computeIfAbsent(command.getClass().getSimpleName(), k -> new TimeoutStatistics());
+                long slack = deadline - ccs.nanoTime();
+                t.slack.record(slack);
+                if (slack < 0) {
+                    t.overruns++;
+                }
+            }
+            finished(command);
+        }
+
+        @Override
+        public void commandFailed(OCSCommand command, Exception ex) {
+            failed++;
+            logger.log(Level.FINE, command + " failed", ex);
+            finished(command);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadGenerator <days> [name=value ...]");
+            System.err.println("Parameters: night (hours), lookahead, exposure, gap, slew, downtime (seconds), images, burst,");
+            System.err.println("            filter, disable (probability per burst), dark (fraction of visits), pipeline, learn (true/false), seed");
+            System.exit(1);
+        }
+        Logger.getLogger("toyocsbridge").setLevel(Level.SEVERE);
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                System.err.println("Expected name=value: " + args[i]);
+                System.exit(1);
+            }
+            generator.configure(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        generator.run(Integer.parseInt(args[0])).print(System.out);
+    }
+}
@@ -0,0 +1,195 @@
+package toyocsbridge;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * An in-process stand-in for SAL. Commands are sent by calling the methods of
+ * this class (from any thread), and acknowledgments and log events are
+ * delivered to registered listeners. Nothing here blocks the sender, so test
+ * drivers can push commands through the real bridge logic as fast as it will
+ * accept them, without needing OpenSplice DDS.
+ *
+ * @author tonyj
+ */
+class LoopbackTransport implements OCSTransport {
+
+    /**
+     * The most send times kept. A command which is never given a final
+     * response (for example because the bridge sends no acknowledgments when
+     * it is not running) would otherwise keep its entry for good.
+     */
+    private static final int MAX_SEND_TIMES = 10_000;
+
+    private final Queue<PendingCommand> inbound = new ConcurrentLinkedQueue<>();
+    /**
+     * When each command was sent, removed when its final response arrives,
+     * when it is superseded by {@link #MAX_SEND_TIMES} later commands, or when
+     * the transport stops running.
+     */
+    private final Map<Integer, Long> sendTimes = new ConcurrentHashMap<>();
+    private final List<AckListener> ackListeners = new CopyOnWriteArrayList<>();
+    private final List<EventListener> eventListeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextCmdId = new AtomicInteger(1);
+    private volatile Thread receiver;
+    private volatile boolean shutdown = false;
+
+    @Override
+    public void run(ToyOCSBridge bridge) {
+        receiver = Thread.currentThread();
+        try {
+            while (!shutdown) {
+                PendingCommand pending = inbound.poll();
+                if (pending != null) {
+                    try {
+                        pending.invocation.invoke(bridge, pending.cmdId);
+                    } catch (RuntimeException x) {
+                        sendTimes.remove(pending.cmdId);
+                        throw x;
+                    }
+                } else {
+                    // Senders unpark us after adding to the queue, so no wake up can be missed
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            receiver = null;
+            // No more acknowledgments will be sent for these
+            sendTimes.clear();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(receiver);
+    }
+
+    @Override
+    public void ackCommand(OCSCommand command, Response response, int timeout, String message) {
+        int cmdId = command.getCmdId();
+        long now = System.nanoTime();
+        Long sent = response.isFinal() ? sendTimes.remove(cmdId) : sendTimes.get(cmdId);
+        long latency = sent == null ? -1 : now - sent;
+        for (AckListener l : ackListeners) {
+            l.ackReceived(cmdId, response, timeout, message, latency);
+        }
+    }
+
+    @Override
+    public void logEvent(String message, int priority) {
+        for (EventListener l : eventListeners) {
+            l.eventLogged(message, priority);
+        }
+    }
+
+    /**
+     * Send a command to the bridge.
+     *
+     * @param invocation The bridge method to invoke
+     * @return The cmdId assigned to the command
+     */
+    int send(CommandInvocation invocation) {
+        int cmdId = nextCmdId.getAndIncrement();
+        sendTimes.put(cmdId, System.nanoTime());
+        sendTimes.remove(cmdId - MAX_SEND_TIMES);
+        inbound.add(new PendingCommand(cmdId, invocation));
+        LockSupport.unpark(receiver);
+        return cmdId;
+    }
+
+    int setFilter(String filterName) {
+        return send((bridge, cmdId) -> bridge.setFilter(cmdId, filterName));
+    }
+
+    int takeImages(double exposure, int nImages, boolean openShutter, boolean science, boolean wavefront, boolean guider, String visitName) {
+        return send((bridge, cmdId) -> bridge.takeImages(cmdId, exposure, nImages, openShutter, science, wavefront, guider, visitName));
+    }
+
+    int initImage(double deltaT) {
+        return send((bridge, cmdId) -> bridge.initImage(cmdId, deltaT));
+    }
+
+    int enable() {
+        return send(ToyOCSBridge::enable);
+    }
+
+    int disable() {
+        return send(ToyOCSBridge::disable);
+    }
+
+    int enterControl() {
+        return send(ToyOCSBridge::enterControl);
+    }
+
+    int exitControl() {
+        return send(ToyOCSBridge::exitControl);
+    }
+
+    int start(String configuration) {
+        return send((bridge, cmdId) -> bridge.start(cmdId, configuration));
+    }
+
+    int standby() {
+        return send(ToyOCSBridge::standby);
+    }
+
+    void addAckListener(AckListener listener) {
+        ackListeners.add(listener);
+    }
+
+    void removeAckListener(AckListener listener) {
+        ackListeners.remove(listener);
+    }
+
+    void addEventListener(EventListener listener) {
+        eventListeners.add(listener);
+    }
+
+    void removeEventListener(EventListener listener) {
+        eventListeners.remove(listener);
+    }
+
+    static interface CommandInvocation {
+
+        void invoke(ToyOCSBridge bridge, int cmdId);
+    }
+
+    static interface AckListener {
+
+        /**
+         * Called for each acknowledgment sent by the bridge.
+         *
+         * @param cmdId The command being acknowledged
+         * @param response The response
+         * @param timeout The timeout (in seconds)
+         * @param message The acknowledgment message
+         * @param nanosSinceSent Time since the command was sent, or -1 if it
+         * was not sent through this transport
+         */
+        void ackReceived(int cmdId, Response response, int timeout, String message, long nanosSinceSent);
+    }
+
+    static interface EventListener {
+
+        void eventLogged(String message, int priority);
+    }
+
+    private static class PendingCommand {
+
+        private final int cmdId;
+        private final CommandInvocation invocation;
+
+        PendingCommand(int cmdId, CommandInvocation invocation) {
+            this.cmdId = cmdId;
+            this.invocation = invocation;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package toyocsbridge;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small embedded HTTP server which publishes the time each state has spent
+ * in each of its values, the number of transitions into each value, and the
+ * command and scheduler statistics, in the Prometheus text exposition format.
+ * Metrics are served from <code>/metrics</code>; they are computed when
+ * scraped, so the server adds nothing to the transition path.
+ *
+ * @author tonyj
+ */
+class MetricsServer implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String[] PHASES = {"preconditions", "ack", "execute", "total"};
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final ToyOCSBridge bridge;
+    private final HttpServer server;
+
+    /**
+     * Start serving metrics.
+     *
+     * @param bridge The bridge whose metrics are served
+     * @param address The address to listen on
+     * @throws IOException If the server cannot be started
+     */
+    MetricsServer(ToyOCSBridge bridge, InetSocketAddress address) throws IOException {
+        this.bridge = bridge;
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        logger.log(Level.INFO, "Serving metrics on http://{0}:{1}/metrics", new Object[]{address.getHostString(), String.valueOf(getPort())});
+    }
+
+    /**
+     * Start a metrics server if the <code>toyocsbridge.metrics</code> system
+     * property is set. The property gives the port, or host:port, to listen
+     * on. If only a port is given the server listens on the loopback address.
+     *
+     * @param bridge The bridge whose metrics are served
+     * @return The server, or <code>null</code> if none is configured or it
+     * could not be started
+     */
+    static MetricsServer startIfConfigured(ToyOCSBridge bridge) {
+        String spec = System.getProperty("toyocsbridge.metrics");
+        if (spec == null) {
+            return null;
+        }
+        try {
+            int colon = spec.lastIndexOf(':');
+            String host = colon < 0 ? "localhost" : spec.substring(0, colon);
+            int port = Integer.parseInt(spec.substring(colon + 1));
+            return new MetricsServer(bridge, new InetSocketAddress(host, port));
+        } catch (IOException | IllegalArgumentException x) {
+            logger.log(Level.WARNING, "Unable to serve metrics on " + spec + ", continuing without metrics", x);
+            return null;
+        }
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Format the current metrics.
+     *
+     * @return The metrics in Prometheus text format
+     */
+    String scrape() {
+        StringBuilder out = new StringBuilder();
+        AggregateStatus as = bridge.getCCS().getAggregateStatus();
+        header(out, "toyocsbridge_state_residency_seconds_total", "counter", "Total time each state has spent in each value");
+        for (State state : as.getStates()) {
+            for (Enum value : (Enum[]) state.getEnumClass().getEnumConstants()) {
+                sample(out, "toyocsbridge_state_residency_seconds_total", stateLabels(state, value), state.getResidency(value).toNanos() / 1e9);
+            }
+        }
+        header(out, "toyocsbridge_state_transitions_total", "counter", "Number of times each state has changed to each value");
+        for (State state : as.getStates()) {
+            for (Enum value : (Enum[]) state.getEnumClass().getEnumConstants()) {
+                sample(out, "toyocsbridge_state_transitions_total", stateLabels(state, value), state.getTransitions(value));
+            }
+        }
+        header(out, "toyocsbridge_commands_total", "counter", "Number of OCS commands by outcome");
+        for (CommandStatistics s : bridge.getCommandMetrics().getAll()) {
+            sample(out, "toyocsbridge_commands_total", commandLabels(s) + ",outcome=\"completed\"", s.getCompleted());
+            sample(out, "toyocsbridge_commands_total", commandLabels(s) + ",outcome=\"rejected\"", s.getRejected());
+            sample(out, "toyocsbridge_commands_total", commandLabels(s) + ",outcome=\"failed\"", s.getFailed());
+        }
+        header(out, "toyocsbridge_command_duration_seconds", "summary", "Time taken by each phase of OCS commands");
+        for (CommandStatistics s : bridge.getCommandMetrics().getAll()) {
+            LatencyHistogram[] histograms = {s.preconditions, s.ack, s.execute, s.total};
+            for (int i = 0; i < PHASES.length; i++) {
+                summary(out, "toyocsbridge_command_duration_seconds", commandLabels(s) + ",phase=\"" + PHASES[i] + "\"", histograms[i]);
+            }
+        }
+        header(out, "toyocsbridge_image_overhead_seconds", "summary", "Time from the end of one readout to the next exposure of a takeImages command");
+        summary(out, "toyocsbridge_image_overhead_seconds", "", bridge.getImageOverhead());
+        SchedulerMetrics scheduler = bridge.getCCS().getSchedulerMetrics();
+        header(out, "toyocsbridge_scheduler_queue_depth", "gauge", "Number of tasks waiting in the CCS scheduler, including cancelled tasks");
+        sample(out, "toyocsbridge_scheduler_queue_depth", "", scheduler.getQueueDepth());
+        header(out, "toyocsbridge_scheduler_cancelled_queued", "gauge", "Number of cancelled tasks still waiting in the CCS scheduler");
+        sample(out, "toyocsbridge_scheduler_cancelled_queued", "", scheduler.getCancelledQueued());
+        header(out, "toyocsbridge_scheduler_lag_seconds", "summary", "How late scheduled tasks ran compared with their deadline");
+        summary(out, "toyocsbridge_scheduler_lag_seconds", "", scheduler.getLagHistogram());
+        for (SchedulerMetrics.Callsite c : scheduler.getCallsites()) {
+            summary(out, "toyocsbridge_scheduler_lag_seconds", callsiteLabels(c), c.lag);
+        }
+        header(out, "toyocsbridge_scheduler_run_seconds", "summary", "Time taken to run scheduled tasks");
+        for (SchedulerMetrics.Callsite c : scheduler.getCallsites()) {
+            summary(out, "toyocsbridge_scheduler_run_seconds", callsiteLabels(c), c.runTime);
+        }
+        return out.toString();
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double q : QUANTILES) {
+            sample(out, name, labels + separator + "quantile=\"" + q + "\"", histogram.getValueAtPercentile(q) / 1e9);
+        }
+        sample(out, name + "_sum", labels, histogram.getSum() / 1e9);
+        sample(out, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        labels(out.append(name), labels).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        labels(out.append(name), labels).append(value).append('\n');
+    }
+
+    private static StringBuilder labels(StringBuilder out, String labels) {
+        return labels.isEmpty() ? out.append(' ') : out.append('{').append(labels).append("} ");
+    }
+
+    private static String stateLabels(State state, Enum value) {
+        return "state=\"" + state.getEnumClass().getSimpleName() + "\",value=\"" + value + "\"";
+    }
+
+    private static String callsiteLabels(SchedulerMetrics.Callsite c) {
+        return "callsite=\"" + c.getName() + "\"";
+    }
+
+    private static String commandLabels(CommandStatistics s) {
+        return "command=\"" + s.getCommand() + "\"";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
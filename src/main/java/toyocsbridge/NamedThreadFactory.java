@@ -0,0 +1,27 @@
+package toyocsbridge;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread factory which creates named daemon threads.
+ *
+ * @author tonyj
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        int n = count.getAndIncrement();
+        Thread t = new Thread(r, n == 0 ? name : name + "-" + n);
+        t.setDaemon(true);
+        return t;
+    }
+}
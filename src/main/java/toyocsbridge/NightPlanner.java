@@ -0,0 +1,646 @@
+package toyocsbridge;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import toyocsbridge.OCSCommandExecutor.CCSCommand;
+import toyocsbridge.OCSCommandExecutor.CommandListener;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * Plans a night of observing: predicts how long a list of visits takes to
+ * execute, reorders the visits to minimize that time, and executes them
+ * through a {@link ToyOCSBridge} so that the prediction can be compared with
+ * the time achieved.
+ * <p>
+ * Visits are executed one after another, each by a <code>setFilter</code>
+ * command if the visit needs a different filter, followed by a
+ * <code>takeImages</code> command. The prediction follows the same timing
+ * model as the simulation: filter changes take the time given by
+ * {@link Filter#getChangeTime(String, int, String)}, and overlap the readout
+ * of the previous image, while the rafts and shutter are got ready as
+ * described by {@link ExposureReadiness}, so an exposure which follows a
+ * filter change waits for a clear and for the shutter to be prepared.
+ * <p>
+ * Since only filter changes, and the preparation which follows them, add dead
+ * time between visits, the optimizer minimizes the cost of the sequence of
+ * filters. Visits in the same group must be executed in the order given,
+ * other visits can be moved freely. Visits without a filter (darks) can be
+ * taken in any filter.
+ *
+ * @author tonyj
+ */
+class NightPlanner {
+
+    private static final Logger logger = Logger.getLogger(NightPlanner.class.getName());
+    private static final String[] FILTERS = {"u-10", "g-9", "r-1", "i-9", "x-100"};
+    /**
+     * The number of partial plans kept at each step of the search.
+     */
+    private static final int BEAM_WIDTH = Integer.getInteger("toyocsbridge.planner.beam", 256);
+
+    private final ToyOCSBridge bridge;
+    private final Filter fcs;
+    private final CCS ccs;
+    private int nextCmdId = 1;
+
+    /**
+     * One visit of a night plan, executed by a single
+     * <code>takeImages</code> command.
+     */
+    static class Visit {
+
+        private final String name;
+        private final String filter;
+        private final double exposure;
+        private final int nImages;
+        private final boolean openShutter;
+        private final boolean science;
+        private final boolean wavefront;
+        private final boolean guider;
+        private final String group;
+
+        /**
+         * Create a visit.
+         *
+         * @param name The visit name
+         * @param filter The filter required, or <code>null</code> if any
+         * filter will do
+         * @param exposure The exposure time of each image, in seconds
+         * @param nImages The number of images
+         * @param openShutter <code>true</code> if the shutter is opened
+         * @param science <code>true</code> to read out the science rafts
+         * @param wavefront <code>true</code> to read out the wavefront sensors
+         * @param guider <code>true</code> to read out the guiders
+         * @param group The group of visits, which must be executed in the
+         * order given, that this visit belongs to, or <code>null</code> if
+         * none
+         */
+        Visit(String name, String filter, double exposure, int nImages, boolean openShutter, boolean science, boolean wavefront, boolean guider, String group) {
+            this.name = name;
+            this.filter = filter;
+            this.exposure = exposure;
+            this.nImages = nImages;
+            this.openShutter = openShutter;
+            this.science = science;
+            this.wavefront = wavefront;
+            this.guider = guider;
+            this.group = group;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getFilter() {
+            return filter;
+        }
+
+        String getGroup() {
+            return group;
+        }
+
+        @Override
+        public String toString() {
+            return "Visit{" + "name=" + name + ", filter=" + filter + ", exposure=" + exposure + ", nImages=" + nImages + ", openShutter=" + openShutter + ", group=" + group + '}';
+        }
+    }
+
+    /**
+     * Create a planner for the given bridge. Plans start from the filter
+     * currently loaded.
+     *
+     * @param bridge The bridge used to execute plans
+     */
+    NightPlanner(ToyOCSBridge bridge) {
+        this.bridge = bridge;
+        this.fcs = bridge.getFCS();
+        this.ccs = bridge.getCCS();
+    }
+
+    /**
+     * Predict how long the visits take to execute, in the order given,
+     * starting with the filter currently loaded, and with the rafts and
+     * shutter not ready.
+     *
+     * @param visits The visits
+     * @return The time from sending the first command until the readout of
+     * the last image is complete
+     */
+    Duration predict(List<Visit> visits) {
+        Timeline timeline = new Timeline(fcs.getCurrentFilter(), fcs.getRotationPosition());
+        for (Visit visit : visits) {
+            timeline.add(visit);
+        }
+        return Duration.ofNanos(timeline.end);
+    }
+
+    /**
+     * Count the filter changes needed to execute the visits in the order
+     * given, starting with the filter currently loaded.
+     *
+     * @param visits The visits
+     * @return The number of filter changes
+     */
+    int countFilterChanges(List<Visit> visits) {
+        String filter = fcs.getCurrentFilter();
+        int changes = 0;
+        for (Visit visit : visits) {
+            if (visit.filter != null && !visit.filter.equals(filter)) {
+                filter = visit.filter;
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Reorder the visits to minimize the time taken to execute them, keeping
+     * the visits of each group in the order given.
+     *
+     * @param visits The visits, in their requested order
+     * @return The visits in the order to execute them, which is the
+     * requested order if no better order was found
+     * @throws IllegalArgumentException If a visit needs a filter which is not
+     * available
+     */
+    List<Visit> optimize(List<Visit> visits) {
+        for (Visit visit : visits) {
+            if (visit.filter != null && !fcs.filterIsAvailable(visit.filter)) {
+                throw new IllegalArgumentException("Invalid filter: " + visit.filter);
+            }
+        }
+        // Each group, and each visit without a group, is a chain which must be executed in order
+        Map<Object, List<Visit>> groups = new LinkedHashMap<>();
+        for (Visit visit : visits) {
+            Object key = visit.group != null ? visit.group : visit;
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(visit);
+        }
+        List<List<Visit>> chains = new ArrayList<>(groups.values());
+
+        // Beam search over the sequence of filters. At each step the next filter is loaded and
+        // every visit it makes possible is taken, which never makes the rest of the plan longer.
+        Node best = null;
+        List<Node> beam = Arrays.asList(new Node(chains, fcs.getCurrentFilter(), fcs.getRotationPosition()).consume());
+        while (!beam.isEmpty()) {
+            Map<Node, Node> next = new HashMap<>();
+            for (Node node : beam) {
+                if (node.remaining == 0) {
+                    if (best == null || node.cost < best.cost) {
+                        best = node;
+                    }
+                    continue;
+                }
+                for (String filter : node.nextFilters()) {
+                    Node child = node.change(filter).consume();
+                    Node existing = next.get(child);
+                    if (existing == null || child.cost < existing.cost) {
+                        next.put(child, child);
+                    }
+                }
+            }
+            List<Node> candidates = new ArrayList<>(next.values());
+            for (Node node : candidates) {
+                node.estimate();
+            }
+            candidates.sort(Comparator.comparingLong(Node::getEstimate));
+            beam = candidates.size() > BEAM_WIDTH ? candidates.subList(0, BEAM_WIDTH) : candidates;
+        }
+        List<Visit> result = best.getVisits();
+        if (predict(result).compareTo(predict(visits)) >= 0) {
+            return new ArrayList<>(visits);
+        }
+        return result;
+    }
+
+    /**
+     * Execute the visits in the order given through the bridge, which must
+     * be enabled and otherwise idle. Each command is sent as soon as the
+     * previous one completes.
+     *
+     * @param visits The visits
+     * @return A stage which completes, with the time taken, when the readout
+     * of the last image is complete, or exceptionally if a command is
+     * rejected or fails
+     */
+    CompletableFuture<Duration> execute(List<Visit> visits) {
+        Execution execution = new Execution(visits);
+        bridge.addCommandListener(execution);
+        execution.result.whenComplete((d, x) -> bridge.removeCommandListener(execution));
+        ccs.schedule(Duration.ZERO, execution::next);
+        return execution.result;
+    }
+
+    /**
+     * Follows the execution of a plan on the timing model. Times are
+     * measured in nanoseconds from the start of the plan.
+     */
+    private class Timeline {
+
+        private long now = 0;
+        private String filter;
+        private int rotation;
+        /**
+         * When the rafts finish their current readout or clear.
+         */
+        private long raftsIdle = 0;
+        /**
+         * When the rafts will need a clear, they need one to start with.
+         */
+        private long raftsExpire = 0;
+        /**
+         * When the shutter finishes closing after the last exposure.
+         */
+        private long shutterClosed = 0;
+        /**
+         * When the shutter readiness lapses, it is not ready to start with.
+         */
+        private long shutterExpire = 0;
+        /**
+         * When the readout of the last image finishes.
+         */
+        private long end = 0;
+
+        Timeline(String filter, int rotation) {
+            this.filter = filter;
+            this.rotation = rotation;
+        }
+
+        void add(Visit visit) {
+            if (visit.filter != null && !visit.filter.equals(filter)) {
+                now += fcs.getChangeTime(filter, rotation, visit.filter).toNanos();
+                filter = visit.filter;
+                rotation = fcs.getRotationPosition(filter);
+            }
+            long exposure = TimeUnit.MILLISECONDS.toNanos((long) (visit.exposure * 1000));
+            for (int i = 0; i < visit.nImages; i++) {
+                // Mirrors ExposureReadiness.prepare
+                long start = Math.max(now, raftsIdle);
+                long raftsReady = now >= raftsExpire ? now + Rafts.CLEAR_TIME.toNanos() : start;
+                long shutterReady = start;
+                if (visit.openShutter) {
+                    long decision = Math.max(now, start - Shutter.PREP_TIME.toNanos());
+                    if (decision >= shutterClosed && shutterExpire <= start) {
+                        shutterReady = decision + Shutter.PREP_TIME.toNanos();
+                    }
+                }
+                long exposureStart = Math.max(raftsReady, shutterReady);
+                long readoutStart = exposureStart + exposure;
+                if (visit.openShutter) {
+                    readoutStart += Shutter.MOVE_TIME.toNanos();
+                    shutterClosed = readoutStart + Shutter.MOVE_TIME.toNanos();
+                    shutterExpire = shutterClosed + Shutter.READY_TIME.toNanos();
+                }
+                raftsIdle = readoutStart + Rafts.READOUT_TIME.toNanos();
+                raftsExpire = raftsIdle + Rafts.QUIESCENT_BEFORE_CLEAR.toNanos();
+                // The next image, or command, goes ahead once the readout starts
+                now = readoutStart;
+            }
+            end = raftsIdle;
+        }
+    }
+
+    /**
+     * A partial plan considered by the search: how far each chain has got,
+     * the filter loaded, and the time spent changing filters so far. Two
+     * nodes are equal if the rest of the plan is the same for both.
+     */
+    private class Node {
+
+        private final List<List<Visit>> chains;
+        private final int[] next;
+        private final String filter;
+        private final int rotation;
+        private final long cost;
+        private int remaining;
+        private final Node parent;
+        private final List<Visit> taken = new ArrayList<>();
+        private long estimate;
+
+        Node(List<List<Visit>> chains, String filter, int rotation) {
+            this.chains = chains;
+            this.next = new int[chains.size()];
+            this.filter = filter;
+            this.rotation = rotation;
+            this.cost = 0;
+            int n = 0;
+            for (List<Visit> chain : chains) {
+                n += chain.size();
+            }
+            this.remaining = n;
+            this.parent = null;
+        }
+
+        private Node(Node parent, String filter, long cost) {
+            this.chains = parent.chains;
+            this.next = parent.next.clone();
+            this.filter = filter;
+            this.rotation = fcs.getRotationPosition(filter);
+            this.cost = cost;
+            this.remaining = parent.remaining;
+            this.parent = parent;
+        }
+
+        /**
+         * @return The filters needed by the next visit of each chain
+         */
+        Set<String> nextFilters() {
+            Set<String> result = new HashSet<>();
+            for (int i = 0; i < next.length; i++) {
+                if (next[i] < chains.get(i).size()) {
+                    result.add(chains.get(i).get(next[i]).filter);
+                }
+            }
+            return result;
+        }
+
+        Node change(String to) {
+            return new Node(this, to, cost + fcs.getChangeTime(filter, rotation, to).toNanos());
+        }
+
+        /**
+         * Take every visit which can be taken with the filter loaded.
+         */
+        Node consume() {
+            int count = remaining;
+            for (boolean progress = true; progress;) {
+                progress = false;
+                for (int i = 0; i < next.length; i++) {
+                    List<Visit> chain = chains.get(i);
+                    while (next[i] < chain.size()) {
+                        Visit visit = chain.get(next[i]);
+                        if (visit.filter != null && !visit.filter.equals(filter)) {
+                            break;
+                        }
+                        taken.add(visit);
+                        next[i]++;
+                        count--;
+                        progress = true;
+                    }
+                }
+            }
+            remaining = count;
+            return this;
+        }
+
+        /**
+         * Compute the cost so far, plus a lower bound on the cost of the rest
+         * of the plan: every other filter still needed must be loaded at
+         * least once.
+         */
+        void estimate() {
+            Set<String> needed = new HashSet<>();
+            for (int i = 0; i < next.length; i++) {
+                List<Visit> chain = chains.get(i);
+                for (int j = next[i]; j < chain.size(); j++) {
+                    String f = chain.get(j).filter;
+                    if (f != null && !f.equals(filter)) {
+                        needed.add(f);
+                    }
+                }
+            }
+            estimate = cost + Filter.LOAD_TIME.plus(Filter.UNLOAD_TIME).multipliedBy(needed.size()).toNanos();
+        }
+
+        long getEstimate() {
+            return estimate;
+        }
+
+        List<Visit> getVisits() {
+            List<List<Visit>> steps = new ArrayList<>();
+            for (Node node = this; node != null; node = node.parent) {
+                steps.add(0, node.taken);
+            }
+            List<Visit> result = new ArrayList<>();
+            for (List<Visit> step : steps) {
+                result.addAll(step);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Node)) {
+                return false;
+            }
+            Node other = (Node) obj;
+            return Arrays.equals(next, other.next) && Objects.equals(filter, other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(next) + Objects.hashCode(filter);
+        }
+    }
+
+    /**
+     * Sends the commands of a plan, each once the previous one has completed.
+     */
+    private class Execution implements CommandListener {
+
+        private final List<Visit> visits;
+        private final CompletableFuture<Duration> result = new CompletableFuture<>();
+        private final long start = ccs.nanoTime();
+        private String filter = fcs.getCurrentFilter();
+        private int index = 0;
+        private volatile int cmdId = -1;
+
+        Execution(List<Visit> visits) {
+            this.visits = visits;
+        }
+
+        /**
+         * Send the next command, or once all the visits are done wait for the
+         * last readout to finish.
+         */
+        private void next() {
+            if (index == visits.size()) {
+                ccs.waitForStatusAsync(Rafts.RaftsState.QUIESCENT, Rafts.READOUT_TIME.plusSeconds(1)).whenComplete((v, x) -> {
+                    if (x != null) {
+                        result.completeExceptionally(x);
+                    } else {
+                        result.complete(Duration.ofNanos(ccs.nanoTime() - start));
+                    }
+                });
+                return;
+            }
+            Visit visit = visits.get(index);
+            int id = nextCmdId++;
+            cmdId = id;
+            if (visit.filter != null && !visit.filter.equals(filter)) {
+                filter = visit.filter;
+                bridge.setFilter(id, visit.filter);
+            } else {
+                index++;
+                bridge.takeImages(id, visit.exposure, visit.nImages, visit.openShutter, visit.science, visit.wavefront, visit.guider, visit.name);
+            }
+        }
+
+        @Override
+        public void commandReceived(OCSCommand command) {
+        }
+
+        @Override
+        public void commandReceived(CCSCommand command) {
+        }
+
+        @Override
+        public void commandAcknowledged(OCSCommand command, Duration timeout) {
+        }
+
+        @Override
+        public void commandRejected(OCSCommand command, String reason) {
+            if (command.getCmdId() == cmdId) {
+                result.completeExceptionally(new IllegalStateException(command + " rejected: " + reason));
+            }
+        }
+
+        @Override
+        public void commandCompleted(OCSCommand command) {
+            if (command.getCmdId() == cmdId) {
+                // Run the next step from the clock, not from inside the executor
+                ccs.schedule(Duration.ZERO, this::next);
+            }
+        }
+
+        @Override
+        public void commandFailed(OCSCommand command, Exception ex) {
+            if (command.getCmdId() == cmdId) {
+                result.completeExceptionally(new IllegalStateException(command + " failed", ex));
+            }
+        }
+    }
+
+    /**
+     * Read a plan, one visit per line. Each line is a list of name=value
+     * pairs, with names <code>name</code>, <code>filter</code> (omit for
+     * any filter), <code>exposure</code>, <code>images</code>,
+     * <code>shutter</code> (open or closed), <code>science</code>,
+     * <code>wavefront</code>, <code>guider</code> and <code>group</code>.
+     * Blank lines, and lines starting with #, are ignored.
+     *
+     * @param lines The lines of the plan
+     * @return The visits
+     * @throws IllegalArgumentException If a line cannot be parsed
+     */
+    static List<Visit> parse(Collection<String> lines) {
+        List<Visit> result = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Map<String, String> values = new HashMap<>();
+            for (String pair : line.split("\\s+")) {
+                int equals = pair.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Expected name=value: " + pair);
+                }
+                values.put(pair.substring(0, equals), pair.substring(equals + 1));
+            }
+            String shutter = values.getOrDefault("shutter", "open");
+            if (!shutter.equals("open") && !shutter.equals("closed")) {
+                throw new IllegalArgumentException("Invalid shutter: " + shutter);
+            }
+            result.add(new Visit(values.getOrDefault("name", "visit" + (result.size() + 1)), values.get("filter"),
+                    Double.parseDouble(values.getOrDefault("exposure", "15")), Integer.parseInt(values.getOrDefault("images", "2")),
+                    shutter.equals("open"), Boolean.parseBoolean(values.getOrDefault("science", "true")),
+                    Boolean.parseBoolean(values.getOrDefault("wavefront", "false")), Boolean.parseBoolean(values.getOrDefault("guider", "false")),
+                    values.get("group")));
+        }
+        return result;
+    }
+
+    /**
+     * Generate a random plan, in which a tenth of the visits are darks and a
+     * fifth belong to one of a few groups.
+     *
+     * @param n The number of visits
+     * @param seed The seed of the random number generator
+     * @return The visits
+     */
+    static List<Visit> random(int n, long seed) {
+        Random random = new Random(seed);
+        List<Visit> result = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            boolean dark = random.nextDouble() < 0.1;
+            String group = !dark && random.nextDouble() < 0.2 ? "group" + random.nextInt(3) : null;
+            result.add(new Visit("visit" + (i + 1), dark ? null : FILTERS[random.nextInt(FILTERS.length)], 15, 2, !dark, true, false, false, group));
+        }
+        return result;
+    }
+
+    /**
+     * Execute the plan, and then the optimized plan, each on a new bridge
+     * running on a virtual clock, and print the predicted and achieved times.
+     */
+    private static void compare(List<Visit> visits) throws Exception {
+        List<Visit> optimized = null;
+        for (int i = 0; i < 2; i++) {
+            VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+            CCS ccs = new CCS(scheduler);
+            ToyOCSBridge bridge = new ToyOCSBridge(ccs);
+            NightPlanner planner = new NightPlanner(bridge);
+            if (optimized == null) {
+                long start = System.nanoTime();
+                optimized = planner.optimize(visits);
+                System.out.printf("Optimized %d visits in %.1fms%n", visits.size(), (System.nanoTime() - start) / 1e6);
+                StringBuilder order = new StringBuilder();
+                for (Visit visit : optimized) {
+                    order.append(' ').append(visit.getName());
+                }
+                System.out.println("Order:" + order);
+            }
+            List<Visit> plan = i == 0 ? visits : optimized;
+            // Bring the camera up to the enabled state
+            bridge.setAvailable();
+            bridge.enterControl(-1);
+            scheduler.runUntil(TimeUnit.MILLISECONDS.toNanos(1));
+            bridge.start(-2, "Normal");
+            scheduler.runUntil(TimeUnit.MILLISECONDS.toNanos(2));
+            bridge.enable(-3);
+            scheduler.runUntil(TimeUnit.MILLISECONDS.toNanos(3));
+
+            Duration predicted = planner.predict(plan);
+            CompletableFuture<Duration> achieved = planner.execute(plan);
+            while (!achieved.isDone()) {
+                scheduler.advance(Duration.ofMinutes(1));
+            }
+            ccs.shutdown();
+            System.out.printf("%-9s %4d filter changes, predicted %s, achieved %s%n", i == 0 ? "Requested" : "Optimized",
+                    planner.countFilterChanges(plan), predicted, achieved.get());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: NightPlanner <plan file> | random:<visits> [seed]");
+            System.exit(1);
+        }
+        Logger.getLogger("toyocsbridge").setLevel(Level.SEVERE);
+        List<Visit> visits;
+        if (args[0].startsWith("random:")) {
+            visits = random(Integer.parseInt(args[0].substring(7)), args.length > 1 ? Long.parseLong(args[1]) : 1);
+        } else {
+            visits = parse(Files.readAllLines(Paths.get(args[0])));
+        }
+        logger.log(Level.FINE, "Planning {0}", visits);
+        compare(visits);
+    }
+}
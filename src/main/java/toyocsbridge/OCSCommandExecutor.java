@@ -1,9 +1,16 @@
 package toyocsbridge;
 
 import java.time.Duration;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.lsst.sal.SAL_camera;
 
 /**
  *
@@ -17,35 +24,330 @@ public class OCSCommandExecutor {
 
         IDLE, BUSY
     };
+
+    /**
+     * Priority of a command waiting in the command queue, in decreasing order
+     * of priority.
+     */
+    enum CommandPriority {
+
+        LIFECYCLE, NORMAL
+    };
     private final State commandState;
+    private final CCS ccs;
+
+    /**
+     * Admits commands in arrival order: tests preconditions and sends the
+     * reject or acknowledgment.
+     */
+    private final ExecutorService dispatcher;
+    /**
+     * Runs admitted commands to completion.
+     */
+    private final ExecutorService worker;
+    /**
+     * Commands waiting for the current command to complete. Only accessed from
+     * the dispatcher.
+     */
+    private final PriorityQueue<QueuedCommand> queue = new PriorityQueue<>();
+    private long queueSequence = 0;
+    /**
+     * The time at which the currently executing command is expected to
+     * complete. Only accessed from the dispatcher.
+     */
+    private long expectedIdleTime;
+    private volatile int maxQueuedCommands = Integer.getInteger("toyocsbridge.maxQueuedCommands", 0);
+    private volatile int queueDepth;
+    private volatile int maxQueueDepth;
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong totalQueueWait = new AtomicLong();
+    private final AtomicLong maxQueueWait = new AtomicLong();
+    private volatile CommandListener[] commandListeners = new CommandListener[0];
+    private volatile CommandMetrics metrics = new CommandMetrics();
+    private volatile DurationEstimator estimator = new DurationEstimator();
 
     OCSCommandExecutor(CCS ccs) {
+        this.ccs = ccs;
         commandState = new State(ccs, CommandState.IDLE);
+        dispatcher = ccs.newSerialExecutor("OCSCommandDispatcher");
+        worker = ccs.newSerialExecutor("OCSCommandWorker");
     }
 
+    /**
+     * Queue an OCS command for execution. This method returns immediately, the
+     * command is admitted (accepted, queued or rejected) on the dispatcher
+     * thread, in the order in which commands were submitted, and then executed
+     * on the worker thread. A long running command therefore never delays the
+     * rejection of commands which arrive while it is executing.
+     *
+     * @param command The command to execute
+     */
     void executeCommand(OCSCommand command) {
-        if (!commandState.isInState(CommandState.IDLE)) {
-            rejectCommand(command, "Command state not idle");
-        } else {
-            try {
-                Duration timeout = command.testPreconditions();
-                commandState.setState(CommandState.BUSY);
-                if (!timeout.isZero()) {
-                    acknowledgeCommand(command, timeout);
-                }
-                command.execute();
-                reportComplete(command);
-            } catch (PreconditionsNotMet ex) {
-                rejectCommand(command, ex.getMessage());
-            } catch (Exception ex) {
+        command.receivedTime = ccs.nanoTime();
+        dispatcher.execute(() -> admitCommand(command));
+    }
+
+    /**
+     * Add a listener which is told about each step in the life of every OCS
+     * command. Listeners are called on the executor threads, so must be fast.
+     *
+     * @param listener The listener to add
+     */
+    synchronized void addCommandListener(CommandListener listener) {
+        commandListeners = Listeners.add(commandListeners, listener);
+    }
+
+    synchronized void removeCommandListener(CommandListener listener) {
+        commandListeners = Listeners.remove(commandListeners, listener);
+    }
+
+    CommandListener[] getCommandListeners() {
+        return commandListeners;
+    }
+
+    /**
+     * @return The latency histograms and outcome counts of the commands run
+     * by this executor
+     */
+    CommandMetrics getCommandMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Replace the command metrics, so that an executor which replaces another
+     * can continue to accumulate into the same statistics.
+     *
+     * @param metrics The metrics to use
+     */
+    void setCommandMetrics(CommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The estimator which learns the duration of the commands run by
+     * this executor
+     */
+    DurationEstimator getDurationEstimator() {
+        return estimator;
+    }
+
+    /**
+     * Replace the duration estimator, so that an executor which replaces
+     * another keeps what has been learned.
+     *
+     * @param estimator The estimator to use
+     */
+    void setDurationEstimator(DurationEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    /**
+     * Convert the timeout of an acknowledgment to the whole number of seconds
+     * sent to OCS. The timeout is rounded up, so that OCS never expects a
+     * command to complete sooner than estimated, and a non-zero timeout is
+     * never sent as zero.
+     *
+     * @param timeout The timeout
+     * @return The timeout in seconds
+     */
+    static int toAckSeconds(Duration timeout) {
+        return (int) Math.min(Integer.MAX_VALUE, (timeout.toNanos() + 999_999_999L) / 1_000_000_000L);
+    }
+
+    /**
+     * Set the maximum number of commands which may be queued while another
+     * command is executing. Queued commands are acknowledged immediately,
+     * with a timeout covering the commands ahead of them, and executed in
+     * priority order once the executor is idle, when they are acknowledged
+     * again with a revised timeout for their own execution if that changes
+     * the deadline OCS was given. With the default
+     * of zero any command which arrives while another is executing is
+     * rejected.
+     *
+     * @param maxQueuedCommands The maximum queue length
+     */
+    void setMaxQueuedCommands(int maxQueuedCommands) {
+        this.maxQueuedCommands = maxQueuedCommands;
+    }
+
+    int getMaxQueuedCommands() {
+        return maxQueuedCommands;
+    }
+
+    private void admitCommand(OCSCommand command) {
+        for (CommandListener l : commandListeners) {
+            l.commandReceived(command);
+        }
+        // A newly arrived command must not overtake any command already queued
+        if (!commandState.isInState(CommandState.IDLE) || !queue.isEmpty()) {
+            if (queue.size() < maxQueuedCommands) {
+                enqueueCommand(command);
+            } else {
+                rejectCommand(command, maxQueuedCommands == 0 ? "Command state not idle" : "Command queue full");
+            }
+            return;
+        }
+        startCommand(command, null);
+    }
+
+    private void enqueueCommand(OCSCommand command) {
+        QueuedCommand queued = new QueuedCommand(command, estimateDuration(command), ccs.nanoTime(), queueSequence++);
+        // The command will wait for the current command, and all queued commands 
+        // which will be run ahead of it.
+        long wait = Math.max(0, expectedIdleTime - ccs.nanoTime());
+        for (QueuedCommand other : queue) {
+            if (other.compareTo(queued) < 0) {
+                wait += other.estimate.toNanos();
+            }
+        }
+        queue.add(queued);
+        queueDepth = queue.size();
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+        Duration timeout = Duration.ofNanos(wait).plus(queued.estimate);
+        queued.ackDeadline = ccs.nanoTime() + timeout.toNanos();
+        acknowledgeCommand(command, timeout);
+        metrics.get(command).ack.record(ccs.nanoTime() - command.receivedTime);
+    }
+
+    /**
+     * Estimate how long a queued command will take. The command's
+     * preconditions may not be met until the commands ahead of it have run
+     * (for example a takeImages queued behind an enable), in which case the
+     * command's worst case is used.
+     */
+    private Duration estimateDuration(OCSCommand command) {
+        try {
+            return command.testPreconditions();
+        } catch (Exception ex) {
+            return command.getWorstCaseDuration();
+        }
+    }
+
+    private void startNextQueued() {
+        QueuedCommand next = queue.poll();
+        queueDepth = queue.size();
+        if (next != null) {
+            long wait = ccs.nanoTime() - next.queuedTime;
+            queuedCount.incrementAndGet();
+            totalQueueWait.addAndGet(wait);
+            maxQueueWait.accumulateAndGet(wait, Math::max);
+            logger.log(Level.INFO, "Dequeue command: {0} after {1}", new Object[]{next.command, Duration.ofNanos(wait)});
+            startCommand(next.command, next);
+        }
+    }
+
+    /**
+     * Start a command, which may have been queued.
+     *
+     * @param command The command to start
+     * @param queued The command's place in the queue, or <code>null</code> if
+     * it was not queued
+     */
+    private void startCommand(OCSCommand command, QueuedCommand queued) {
+        boolean wasQueued = queued != null;
+        CommandStatistics statistics = metrics.get(command);
+        Duration timeout;
+        long start = ccs.nanoTime();
+        try {
+            timeout = command.testPreconditions();
+            statistics.preconditions.record(ccs.nanoTime() - start);
+        } catch (PreconditionsNotMet ex) {
+            if (wasQueued) {
+                // The command has already been acknowledged, so it can no longer be rejected
                 reportError(command, ex);
-            } finally {
+                startNextQueued();
+            } else {
+                rejectCommand(command, ex.getMessage());
+            }
+            return;
+        } catch (Exception ex) {
+            reportError(command, ex);
+            if (wasQueued) {
+                startNextQueued();
+            }
+            return;
+        }
+        // A queued command was acknowledged when it was queued, with a timeout
+        // which included the wait for the commands ahead of it. It is acknowledged
+        // again as it starts only if its own execution moves the deadline OCS
+        // was given by at least the one second resolution of the timeout.
+        // Set BUSY before handing the command over, so that any command admitted 
+        // after this one is queued or rejected until it completes.
+        commandState.setState(CommandState.BUSY);
+        command.startedTime = start;
+        long now = ccs.nanoTime();
+        expectedIdleTime = now + timeout.toNanos();
+        if (!wasQueued) {
+            if (!timeout.isZero()) {
+                acknowledgeCommand(command, timeout);
+                statistics.ack.record(ccs.nanoTime() - command.receivedTime);
+            }
+        } else if (!timeout.isZero() && toAckSeconds(timeout) != toAckSeconds(Duration.ofNanos(Math.max(0, queued.ackDeadline - now)))) {
+            acknowledgeCommand(command, timeout);
+        }
+        try {
+            worker.execute(() -> runCommand(command));
+        } catch (RejectedExecutionException ex) {
+            commandState.setState(CommandState.IDLE);
+            reportError(command, ex);
+            // Any queued commands are failed in turn
+            startNextQueued();
+        }
+    }
+
+    private void runCommand(OCSCommand command) {
+        long start = ccs.nanoTime();
+        CompletionStage<Void> result;
+        try {
+            result = command.executeAsync();
+        } catch (Exception ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            result = failed;
+        }
+        // Completion is always reported from the worker thread, whichever thread 
+        // actually finished the command.
+        result.whenComplete((ignored, ex) -> {
+            long end = ccs.nanoTime();
+            try {
+                worker.execute(() -> completeCommand(command, start, end, ex));
+            } catch (RejectedExecutionException rejected) {
+                // Shutting down, the command's result can no longer be reported
+                // in order, but it must not leave the executor busy
                 commandState.setState(CommandState.IDLE);
+                reportError(command, rejected);
             }
+        });
+    }
+
+    private void completeCommand(OCSCommand command, long start, long end, Throwable ex) {
+        metrics.get(command).execute.record(end - start);
+        if (ex == null && command.durationKey != null) {
+            estimator.record(command.durationKey, end - command.startedTime - command.knownDuration);
         }
+        try {
+            if (ex == null) {
+                reportComplete(command);
+            } else {
+                reportError(command, unwrap(ex));
+            }
+        } finally {
+            commandState.setState(CommandState.IDLE);
+            dispatcher.execute(this::startNextQueued);
+        }
+    }
+
+    private static Exception unwrap(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t instanceof Exception ? (Exception) t : new ExecutionException(t);
     }
 
     void executeCommand(CCSCommand command) {
+        for (CommandListener l : commandListeners) {
+            l.commandReceived(command);
+        }
         // CCS commands do not report their execution to the OCS
         try {
             command.testPreconditions();
@@ -57,20 +359,76 @@ public class OCSCommandExecutor {
         }
     }
 
+    /**
+     * @return The number of commands currently queued
+     */
+    int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return The largest number of commands ever queued at once
+     */
+    int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return The number of commands which have been dequeued for execution
+     */
+    long getDequeuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * @return The mean time dequeued commands spent in the queue
+     */
+    Duration getMeanQueueWait() {
+        long n = queuedCount.get();
+        return n == 0 ? Duration.ZERO : Duration.ofNanos(totalQueueWait.get() / n);
+    }
+
+    /**
+     * @return The longest time any command spent in the queue
+     */
+    Duration getMaxQueueWait() {
+        return Duration.ofNanos(maxQueueWait.get());
+    }
+
+    void shutdown() {
+        dispatcher.shutdown();
+        worker.shutdown();
+    }
+
     protected void rejectCommand(OCSCommand command, String reason) {
         logger.log(Level.INFO, "Reject command: {0} because {1}", new Object[]{command, reason});
+        metrics.get(command).commandRejected(ccs.nanoTime() - command.receivedTime);
+        for (CommandListener l : commandListeners) {
+            l.commandRejected(command, reason);
+        }
     }
 
     protected void acknowledgeCommand(OCSCommand command, Duration timeout) {
         logger.log(Level.INFO, "Acknowledge command: {0} timeout {1}", new Object[]{command, timeout});
+        for (CommandListener l : commandListeners) {
+            l.commandAcknowledged(command, timeout);
+        }
     }
 
     protected void reportError(OCSCommand command, Exception ex) {
         logger.log(Level.WARNING, "Command failed: " + command, ex);
+        metrics.get(command).commandFailed(ccs.nanoTime() - command.receivedTime);
+        for (CommandListener l : commandListeners) {
+            l.commandFailed(command, ex);
+        }
     }
 
     protected void reportComplete(OCSCommand command) {
         logger.log(Level.INFO, "Command complete: {0}", command);
+        metrics.get(command).commandCompleted(ccs.nanoTime() - command.receivedTime);
+        for (CommandListener l : commandListeners) {
+            l.commandCompleted(command);
+        }
     }
 
     /**
@@ -80,7 +438,27 @@ public class OCSCommandExecutor {
      */
     public static abstract class OCSCommand {
 
+        private static final Object[] NO_ARGUMENTS = new Object[0];
         private final int cmdId;
+        /**
+         * When the command was submitted to the executor, used to time it.
+         */
+        long receivedTime;
+        /**
+         * When the command was started, used to learn its duration.
+         */
+        long startedTime;
+        /**
+         * The key under which the duration of the command is learned, or
+         * <code>null</code> if it is not learned. Set by
+         * {@link #testPreconditions()}, see {@link DurationEstimator}.
+         */
+        String durationKey;
+        /**
+         * The part of the duration of the command which is known when it
+         * starts, and so is not learned, in nanoseconds.
+         */
+        long knownDuration;
 
         OCSCommand(int cmdId) {
             this.cmdId = cmdId;
@@ -95,15 +473,71 @@ public class OCSCommandExecutor {
         abstract Duration testPreconditions() throws PreconditionsNotMet;
 
         /**
-         * Actually perform the command
+         * Estimate the duration of the command without testing its
+         * preconditions, used when a command is queued behind a command which
+         * it depends on. The default is zero, for commands which complete
+         * immediately.
+         *
+         * @return The worst case duration of the command
          */
-        abstract void execute() throws Exception;
+        Duration getWorstCaseDuration() {
+            return Duration.ZERO;
+        }
+
+        /**
+         * Perform the command without blocking. The returned stage completes
+         * when the command is complete. Commands which complete before
+         * returning can extend {@link BlockingOCSCommand} instead.
+         *
+         * @return A stage which completes when the command is complete
+         */
+        abstract CompletionStage<Void> executeAsync() throws Exception;
 
         public int getCmdId() {
             return cmdId;
         }
 
-        abstract void ackCommand(SAL_camera mgr, int response, int timeout, String message);
+        /**
+         * The priority of this command if it has to be queued.
+         *
+         * @return The priority
+         */
+        CommandPriority getPriority() {
+            return CommandPriority.NORMAL;
+        }
+
+        /**
+         * The arguments of the command, in the order they are passed to the
+         * bridge, excluding the cmdId. Used to journal the command.
+         *
+         * @return The arguments, which may be Integer, Double, Boolean or
+         * String
+         */
+        Object[] getArguments() {
+            return NO_ARGUMENTS;
+        }
+    }
+
+    /**
+     * A base class for OCS commands which are complete when {@link #execute()}
+     * returns.
+     */
+    public static abstract class BlockingOCSCommand extends OCSCommand {
+
+        BlockingOCSCommand(int cmdId) {
+            super(cmdId);
+        }
+
+        /**
+         * Actually perform the command
+         */
+        abstract void execute() throws Exception;
+
+        @Override
+        final CompletionStage<Void> executeAsync() throws Exception {
+            execute();
+            return CompletableFuture.completedFuture(null);
+        }
     }
 
     /**
@@ -129,6 +563,56 @@ public class OCSCommandExecutor {
         abstract void execute() throws Exception;
     }
 
+    /**
+     * Receives each step in the life of an OCS command.
+     */
+    static interface CommandListener {
+
+        void commandReceived(OCSCommand command);
+
+        /**
+         * Called when a CCS command is received. CCS commands are executed
+         * immediately, and do not report their execution.
+         *
+         * @param command The command
+         */
+        void commandReceived(CCSCommand command);
+
+        void commandAcknowledged(OCSCommand command, Duration timeout);
+
+        void commandRejected(OCSCommand command, String reason);
+
+        void commandCompleted(OCSCommand command);
+
+        void commandFailed(OCSCommand command, Exception ex);
+    }
+
+    private static class QueuedCommand implements Comparable<QueuedCommand> {
+
+        private final OCSCommand command;
+        private final Duration estimate;
+        private final long queuedTime;
+        private final long sequence;
+        /**
+         * The time by which OCS was told, when the command was queued, to
+         * expect it to complete.
+         */
+        private long ackDeadline;
+
+        QueuedCommand(OCSCommand command, Duration estimate, long queuedTime, long sequence) {
+            this.command = command;
+            this.estimate = estimate;
+            this.queuedTime = queuedTime;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedCommand other) {
+            int result = command.getPriority().compareTo(other.command.getPriority());
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
     static class PreconditionsNotMet extends Exception {
 
         private static final long serialVersionUID = 1L;
@@ -3,37 +3,44 @@ package toyocsbridge;
 import java.time.Duration;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.lsst.sal.SAL_camera;
+import toyocsbridge.OCSTransport.Response;
 
 /**
- * Interface to the real OCS.
+ * Interface to the OCS. By default this talks to the real OCS using SAL, but
+ * any {@link OCSTransport} can be used.
  *
  * @author tonyj
  */
 public class OCSInterface {
 
-    private final SAL_camera mgr;
-    private boolean shutdown = false;
+    private final OCSTransport transport;
     private Thread runThread;
     private final ToyOCSBridge bridge;
     private static final Logger logger = Logger.getLogger(OCSInterface.class.getName());
 
     OCSInterface(ToyOCSBridge bridge) {
+        this(bridge, new SALTransport());
+    }
+
+    OCSInterface(ToyOCSBridge bridge, OCSTransport transport) {
         this.bridge = bridge;
-        mgr = new SAL_camera();
+        this.transport = transport;
         ExtendedOCSCommandExecutor exec = new ExtendedOCSCommandExecutor(bridge.getCCS());
         bridge.setExecutor(exec);
-        bridge.getCCS().addStateChangeListener((currentState, oldState) -> {
+        bridge.getCCS().subscribe("OCSLogEvent", (currentState, oldState, newState, timestamp) -> {
             // For now send a generic event
-            String msg = String.format("State Changed %s: %s->%s", currentState.getClass().getSimpleName(), oldState, currentState);
+            String msg = String.format("State Changed %s: %s->%s", currentState.getEnumClass().getSimpleName(), oldState, newState);
             int priority = 1;
-            mgr.logEvent(msg, priority);
+            transport.logEvent(msg, priority);
         });
     }
 
     public static void main(String[] args) {
         ToyOCSBridge bridge = new ToyOCSBridge();
         OCSInterface ocsInterface = new OCSInterface(bridge);
+        Journal.openIfConfigured(bridge);
+        bridge.registerMBeans();
+        MetricsServer.startIfConfigured(bridge);
         ToyOCSGUI gui = new ToyOCSGUI(bridge);
         gui.setVisible(true);
 
@@ -54,83 +61,21 @@ public class OCSInterface {
 
     }
 
-    @SuppressWarnings("SleepWhileInLoop")
     void run() {
         try {
             runThread = Thread.currentThread();
-            // Currently we have to poll for each command
-            mgr.salProcessor("camera_command_setFilter");
-            camera.command_setFilter setFilterCommand = new camera.command_setFilter();
-            mgr.salProcessor("camera_command_takeImages");
-            camera.command_takeImages takeImagesCommand = new camera.command_takeImages();
-            mgr.salProcessor("camera_command_initImage");
-            camera.command_initImage initImageCommand = new camera.command_initImage();
-            mgr.salProcessor("camera_command_enable");
-            camera.command_enable enableCommand = new camera.command_enable();
-            mgr.salProcessor("camera_command_disable");
-            camera.command_disable disableCommand = new camera.command_disable();
-            mgr.salProcessor("camera_command_enterControl");
-            camera.command_enterControl enterControlCommand = new camera.command_enterControl();
-            mgr.salProcessor("camera_command_exitControl");
-            camera.command_exitControl exitControlCommand = new camera.command_exitControl();
-            mgr.salProcessor("camera_command_start");
-            camera.command_start startCommand = new camera.command_start();
-            mgr.salProcessor("camera_command_standby");
-            camera.command_standby standbyCommand = new camera.command_standby();
-
-            while (!shutdown) {
-                int cmdId = mgr.acceptCommand_setFilter(setFilterCommand);
-                if (cmdId > 0) {
-                    bridge.setFilter(cmdId, setFilterCommand.name);
-                }
-                cmdId = mgr.acceptCommand_takeImages(takeImagesCommand);
-                if (cmdId > 0) {
-                    bridge.takeImages(cmdId, takeImagesCommand.expTime, takeImagesCommand.numImages, takeImagesCommand.shutter,
-                            takeImagesCommand.science, takeImagesCommand.wfs, takeImagesCommand.guide, takeImagesCommand.imageSequenceName);
-                }
-                cmdId = mgr.acceptCommand_initImage(initImageCommand);
-                if (cmdId > 0) {
-                    bridge.initImage(cmdId, initImageCommand.deltaT);
-                }
-                cmdId = mgr.acceptCommand_enable(enableCommand);
-                if (cmdId > 0) {
-                    bridge.enable(cmdId);
-                }
-                cmdId = mgr.acceptCommand_disable(disableCommand);
-                if (cmdId > 0) {
-                    bridge.disable(cmdId);
-                }
-                cmdId = mgr.acceptCommand_enterControl(enterControlCommand);
-                if (cmdId > 0) {
-                    bridge.enterControl(cmdId);
-                }
-                cmdId = mgr.acceptCommand_exitControl(exitControlCommand);
-                if (cmdId > 0) {
-                    bridge.exitControl(cmdId);
-                }
-                cmdId = mgr.acceptCommand_start(startCommand);
-                if (cmdId > 0) {
-                    bridge.start(cmdId, startCommand.configuration);
-                }
-                cmdId = mgr.acceptCommand_standby(standbyCommand);
-                if (cmdId > 0) {
-                    bridge.standby(cmdId);
-                }
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ex) {
-                    logger.log(Level.SEVERE, "Unexpected interruption", ex);
-                }
-            }
-            mgr.salShutdown();
+            transport.run(bridge);
         } finally {
             runThread = null;
         }
     }
 
     void shutdown() throws InterruptedException {
-        shutdown = true;
-        runThread.join();
+        Thread thread = runThread;
+        transport.shutdown();
+        if (thread != null) {
+            thread.join();
+        }
     }
 
     private class ExtendedOCSCommandExecutor extends OCSCommandExecutor {
@@ -143,7 +88,7 @@ public class OCSInterface {
         protected void reportComplete(OCSCommand command) {
             super.reportComplete(command);
             if (command.getCmdId() != 0 && runThread != null) {
-                command.ackCommand(mgr, SAL_camera.SAL__CMD_COMPLETE, 0, "Done : OK");
+                transport.ackCommand(command, Response.COMPLETE, 0, "Done : OK");
             }
 
         }
@@ -152,7 +97,7 @@ public class OCSInterface {
         protected void reportError(OCSCommand command, Exception ex) {
             super.reportError(command, ex);
             if (command.getCmdId() != 0 && runThread != null) {
-                command.ackCommand(mgr, SAL_camera.SAL__CMD_FAILED, 0, "Error : " + ex.getMessage());
+                transport.ackCommand(command, Response.FAILED, 0, "Error : " + ex.getMessage());
             }
         }
 
@@ -160,7 +105,7 @@ public class OCSInterface {
         protected void acknowledgeCommand(OCSCommand command, Duration timeout) {
             super.acknowledgeCommand(command, timeout);
             if (command.getCmdId() != 0 && runThread != null) {
-                command.ackCommand(mgr, SAL_camera.SAL__CMD_INPROGRESS, (int) timeout.getSeconds(), "Ack : OK");
+                transport.ackCommand(command, Response.INPROGRESS, toAckSeconds(timeout), "Ack : OK");
             }
         }
 
@@ -168,7 +113,7 @@ public class OCSInterface {
         protected void rejectCommand(OCSCommand command, String reason) {
             super.rejectCommand(command, reason);
             if (command.getCmdId() != 0 && runThread != null) {
-                command.ackCommand(mgr, SAL_camera.SAL__CMD_NOACK, 0, "Ack : NO");
+                transport.ackCommand(command, Response.NOACK, 0, "Ack : NO");
             }
         }
     }
@@ -0,0 +1,86 @@
+package toyocsbridge;
+
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * The transport used to exchange commands and events with the OCS.
+ * Acknowledgments are sent with a {@link Response}, which each transport maps
+ * to its own response codes, so transports other than SAL do not need the SAL
+ * library.
+ *
+ * @author tonyj
+ */
+interface OCSTransport {
+
+    /**
+     * The responses which can be sent when acknowledging a command.
+     */
+    enum Response {
+        /**
+         * The command has been received.
+         */
+        ACK(false),
+        /**
+         * The command has been accepted, and is being executed.
+         */
+        INPROGRESS(false),
+        /**
+         * The command completed successfully.
+         */
+        COMPLETE(true),
+        /**
+         * The command was rejected.
+         */
+        NOACK(true),
+        /**
+         * The command failed.
+         */
+        FAILED(true);
+
+        private final boolean isFinal;
+
+        Response(boolean isFinal) {
+            this.isFinal = isFinal;
+        }
+
+        /**
+         * @return <code>true</code> if no further acknowledgments follow this
+         * one
+         */
+        boolean isFinal() {
+            return isFinal;
+        }
+    }
+
+    /**
+     * Receive commands and pass them to the bridge. Does not return until the
+     * transport is shut down.
+     *
+     * @param bridge The bridge which will execute the received commands
+     */
+    void run(ToyOCSBridge bridge);
+
+    /**
+     * Stop receiving commands, causing {@link #run} to return.
+     */
+    void shutdown();
+
+    /**
+     * Send an acknowledgment for a command previously received by this
+     * transport.
+     *
+     * @param command The command being acknowledged
+     * @param response The response
+     * @param timeout The timeout (in seconds), or 0
+     * @param message A message to send with the acknowledgment
+     */
+    void ackCommand(OCSCommand command, Response response, int timeout, String message);
+
+    /**
+     * Publish a log event.
+     *
+     * @param message The message
+     * @param priority The priority
+     */
+    void logEvent(String message, int priority);
+}
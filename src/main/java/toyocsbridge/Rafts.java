@@ -2,6 +2,7 @@ package toyocsbridge;
 
 import java.time.Duration;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import toyocsbridge.State.StateChangeListener;
 
 /**
@@ -31,6 +32,16 @@ public class Rafts {
 
     private final State raftsState;
     private final CCS ccs;
+    /**
+     * Fires when the sensors have been quiescent for too long, and need a
+     * clear.
+     */
+    private volatile ScheduledFuture<?> clearFuture;
+    /**
+     * Fires when the current clear or readout finishes, or <code>null</code>
+     * if that is not known.
+     */
+    private volatile ScheduledFuture<?> idleFuture;
 
     Rafts(CCS ccs) {
         this.ccs = ccs;
@@ -38,7 +49,6 @@ public class Rafts {
         // Whenever we enter ready state, we start a timer to indocate when a clear is needed
         // If we exit ready state we cancel the timer.
         raftsState.addStateChangeListener(new StateChangeListener<RaftsState>() {
-            private ScheduledFuture<?> clearFuture;
 
             @Override
             public void stateChanged(State<RaftsState> currentState, RaftsState oldState) {
@@ -62,15 +72,46 @@ public class Rafts {
         ccs.schedule(integrationTime, () -> {
             raftsState.setState(RaftsState.READING_OUT);
         });
-        ccs.schedule(integrationTime.plus(READOUT_TIME), () -> {
+        idleFuture = ccs.schedule(integrationTime.plus(READOUT_TIME), () -> {
             raftsState.setState(RaftsState.QUIESCENT);
         });
     }
 
+    /**
+     * @return The time until the sensors finish their current exposure,
+     * readout or clear, or zero if they are not busy or the time is not known
+     */
+    Duration getTimeUntilIdle() {
+        ScheduledFuture<?> timer = idleFuture;
+        if (timer == null || timer.isDone()) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(Math.max(0, timer.getDelay(TimeUnit.NANOSECONDS)));
+    }
+
+    /**
+     * Test whether the sensors must be cleared before an exposure starting in
+     * the given time. They must if they already need a clear, or if they are
+     * quiescent but will need a clear before then. Sensors which are being
+     * cleared or read out will be quiescent, with their full validity, when
+     * they finish, so do not need another clear.
+     *
+     * @param startIn The time until the exposure starts
+     * @return <code>true</code> if a clear is needed
+     */
+    boolean needsClear(Duration startIn) {
+        if (raftsState.isInState(RaftsState.NEEDS_CLEAR)) {
+            return true;
+        }
+        ScheduledFuture<?> timer = clearFuture;
+        return raftsState.isInState(RaftsState.QUIESCENT) && timer != null
+                && timer.getDelay(TimeUnit.NANOSECONDS) <= startIn.toNanos();
+    }
+
     void clear(int nClears) {
         raftsState.checkState(RaftsState.QUIESCENT, RaftsState.NEEDS_CLEAR);
         raftsState.setState(RaftsState.CLEARING);
-        ccs.schedule(CLEAR_TIME.multipliedBy(nClears), () -> {
+        idleFuture = ccs.schedule(CLEAR_TIME.multipliedBy(nClears), () -> {
             raftsState.setState(RaftsState.QUIESCENT);
         });
     }
@@ -78,13 +119,14 @@ public class Rafts {
     void startExposure() {
         raftsState.checkState(RaftsState.QUIESCENT);
         raftsState.setState(RaftsState.INTEGRATING);
+        idleFuture = null;
     }    
 
     void endExposure(boolean readout) {
         raftsState.checkState(RaftsState.INTEGRATING);
         if (readout) {
            raftsState.setState(RaftsState.READING_OUT); 
-           ccs.schedule(READOUT_TIME, () -> {
+           idleFuture = ccs.schedule(READOUT_TIME, () -> {
             raftsState.setState(RaftsState.QUIESCENT);
            });
         } else {
@@ -0,0 +1,37 @@
+package toyocsbridge;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A scheduler which runs tasks in real time.
+ *
+ * @author tonyj
+ */
+class RealTimeScheduler extends ScheduledThreadPoolExecutor implements CCSScheduler {
+
+    RealTimeScheduler(int corePoolSize) {
+        super(corePoolSize, new NamedThreadFactory("CCSScheduler"));
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    @Override
+    public int getCancelledQueued() {
+        int result = 0;
+        for (Runnable task : getQueue()) {
+            if (task instanceof Future && ((Future<?>) task).isCancelled()) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,499 @@
+package toyocsbridge;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import toyocsbridge.OCSCommandExecutor.CCSCommand;
+import toyocsbridge.OCSCommandExecutor.CommandListener;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * Re-runs a session recorded by {@link Journal}. The recorded commands are
+ * fed, with their original inter-arrival times, into a fresh
+ * {@link ToyOCSBridge} running on a {@link VirtualTimeScheduler}, and the
+ * resulting state transitions are compared with the recorded ones.
+ * <p>
+ * By default the replay runs as fast as the virtual clock allows, a speed
+ * factor can be set to pace it against the wall clock instead. Since the
+ * recorded session ran in real time, the replayed transitions will not
+ * happen at exactly the same times as the recorded ones; a state is only
+ * reported as diverging if the replayed and recorded values differ for longer
+ * than the tolerance.
+ *
+ * @author tonyj
+ */
+class Replay {
+
+    private static final Logger logger = Logger.getLogger(Replay.class.getName());
+
+    private final Recording recording;
+    private Duration tolerance = Duration.ofMillis(100);
+    private double speed = 0;
+    private long replayedTransitions;
+
+    /**
+     * Load a recorded session.
+     *
+     * @param journal The journal directory
+     * @throws IOException If the journal cannot be read
+     */
+    Replay(Path journal) throws IOException {
+        recording = new Recording();
+        new JournalReader(journal).read(recording);
+    }
+
+    /**
+     * Set how long the replayed and recorded states may disagree before it is
+     * reported as a divergence. The default is 100ms.
+     *
+     * @param tolerance The tolerance
+     */
+    void setTolerance(Duration tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Set the speed of the replay, relative to the original session.
+     *
+     * @param speed The speed, or 0 (the default) to run as fast as possible
+     */
+    void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Run the replay.
+     *
+     * @return Every divergence found, in order of time
+     */
+    List<Divergence> run() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        CCS ccs = new CCS(scheduler);
+        ToyOCSBridge bridge = new ToyOCSBridge(ccs);
+
+        Map<String, String> initial = new HashMap<>();
+        for (State<?> state : ccs.getAggregateStatus().getStates()) {
+            initial.put(state.getEnumClass().getName(), state.getState().name());
+        }
+        List<Change> replayed = new ArrayList<>();
+        // Called on the clock, which is this thread
+        ccs.addStateChangeListener((state, oldState) -> {
+            replayed.add(new Change(ccs.nanoTime(), state.getEnumClass().getName(), state.getState().name()));
+        });
+        Map<Integer, String> outcomes = new HashMap<>();
+        bridge.addCommandListener(new OutcomeListener(outcomes));
+
+        for (ReceivedCommand command : recording.commands) {
+            scheduler.schedule(() -> command.invoke(bridge), command.time, TimeUnit.NANOSECONDS);
+        }
+        try {
+            // Nothing is known about what happened after the end of the recording
+            drive(scheduler, recording.end);
+        } finally {
+            ccs.shutdown();
+        }
+        replayedTransitions = replayed.size();
+
+        List<Divergence> result = new ArrayList<>();
+        compareStates(initial, replayed, result);
+        compareOutcomes(outcomes, result);
+        result.sort(Comparator.comparingLong((Divergence d) -> d.start));
+        return result;
+    }
+
+    private void drive(VirtualTimeScheduler scheduler, long end) {
+        if (speed <= 0) {
+            scheduler.runUntil(end);
+            return;
+        }
+        long step = TimeUnit.MILLISECONDS.toNanos(10);
+        long start = System.nanoTime();
+        for (long now = 0; now < end;) {
+            now = Math.min(end, now + step);
+            scheduler.runUntil(now);
+            long sleep = start + (long) (now / speed) - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+        }
+    }
+
+    /**
+     * Sweep through the recorded and replayed transitions in time order,
+     * tracking the aggregate status of each, and report every interval during
+     * which a state differs for longer than the tolerance.
+     */
+    private void compareStates(Map<String, String> replayedInitial, List<Change> replayed, List<Divergence> result) {
+        Map<String, String> expected = new HashMap<>(recording.initial);
+        Map<String, String> actual = new HashMap<>(replayedInitial);
+        Map<String, Divergence> open = new HashMap<>();
+        Set<String> states = new TreeSet<>(expected.keySet());
+        states.addAll(actual.keySet());
+        for (String state : states) {
+            check(state, 0, expected, actual, open, result);
+        }
+        List<Change> recorded = recording.transitions;
+        Set<String> changed = new HashSet<>();
+        for (int i = 0, j = 0; i < recorded.size() || j < replayed.size();) {
+            long time = Math.min(i < recorded.size() ? recorded.get(i).time : Long.MAX_VALUE,
+                    j < replayed.size() ? replayed.get(j).time : Long.MAX_VALUE);
+            changed.clear();
+            for (; i < recorded.size() && recorded.get(i).time == time; i++) {
+                expected.put(recorded.get(i).state, recorded.get(i).value);
+                changed.add(recorded.get(i).state);
+            }
+            for (; j < replayed.size() && replayed.get(j).time == time; j++) {
+                actual.put(replayed.get(j).state, replayed.get(j).value);
+                changed.add(replayed.get(j).state);
+            }
+            for (String state : changed) {
+                check(state, time, expected, actual, open, result);
+            }
+        }
+        // Anything still diverging at the end was never resolved
+        for (Divergence d : open.values()) {
+            if (recording.end - d.start > tolerance.toNanos()) {
+                result.add(d);
+            }
+        }
+    }
+
+    private void check(String state, long time, Map<String, String> expected, Map<String, String> actual, Map<String, Divergence> open, List<Divergence> result) {
+        String e = expected.get(state);
+        String a = actual.get(state);
+        Divergence d = open.get(state);
+        if (!Objects.equals(e, a)) {
+            if (d == null) {
+                open.put(state, new Divergence(time, simpleName(state), e, a));
+            }
+        } else if (d != null) {
+            open.remove(state);
+            d.end = time;
+            if (time - d.start > tolerance.toNanos()) {
+                result.add(d);
+            }
+        }
+    }
+
+    private void compareOutcomes(Map<Integer, String> outcomes, List<Divergence> result) {
+        for (ReceivedCommand command : recording.commands) {
+            if (command.cmdId == 0) {
+                continue;
+            }
+            String e = recording.outcomes.get(command.cmdId);
+            String a = outcomes.get(command.cmdId);
+            if (!Objects.equals(e, a)) {
+                Divergence d = new Divergence(command.time, command.name + "(" + command.cmdId + ")", e, a);
+                d.end = command.time;
+                result.add(d);
+            }
+        }
+    }
+
+    private static String simpleName(String enumClass) {
+        return enumClass.substring(Math.max(enumClass.lastIndexOf('.'), enumClass.lastIndexOf('$')) + 1);
+    }
+
+    /**
+     * A period during which the replay did not match the recording, either a
+     * state having a different value, or a command having a different
+     * outcome.
+     */
+    static class Divergence {
+
+        private final long start;
+        private long end = -1;
+        private final String what;
+        private final String expected;
+        private final String actual;
+
+        Divergence(long start, String what, String expected, String actual) {
+            this.start = start;
+            this.what = what;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        /**
+         * @return The time since the start of the session at which the
+         * divergence started
+         */
+        Duration getStart() {
+            return Duration.ofNanos(start);
+        }
+
+        /**
+         * @return How long the divergence lasted, or <code>null</code> if it
+         * was never resolved
+         */
+        Duration getDuration() {
+            return end < 0 ? null : Duration.ofNanos(end - start);
+        }
+
+        String getWhat() {
+            return what;
+        }
+
+        String getExpected() {
+            return expected;
+        }
+
+        String getActual() {
+            return actual;
+        }
+
+        @Override
+        public String toString() {
+            return "Divergence{" + "at=" + getStart() + ", for=" + (end < 0 ? "ever" : getDuration()) + ", " + what + " expected=" + expected + " actual=" + actual + '}';
+        }
+    }
+
+    private static class Change {
+
+        private final long time;
+        private final String state;
+        private final String value;
+
+        Change(long time, String state, String value) {
+            this.time = time;
+            this.state = state;
+            this.value = value;
+        }
+    }
+
+    private static class ReceivedCommand {
+
+        private final long time;
+        private final int cmdId;
+        private final String name;
+        private final Object[] args;
+
+        ReceivedCommand(long time, int cmdId, String name, Object[] args) {
+            this.time = time;
+            this.cmdId = cmdId;
+            this.name = name;
+            this.args = args;
+        }
+
+        void invoke(ToyOCSBridge bridge) {
+            switch (name) {
+                case "InitImageCommand":
+                    bridge.initImage(cmdId, (Double) args[0]);
+                    break;
+                case "TakeImagesCommand":
+                    bridge.takeImages(cmdId, (Double) args[0], (Integer) args[1], (Boolean) args[2], (Boolean) args[3], (Boolean) args[4], (Boolean) args[5], (String) args[6]);
+                    break;
+                case "SetFilterCommand":
+                    bridge.setFilter(cmdId, (String) args[0]);
+                    break;
+                case "InitGuiders":
+                    bridge.initGuiders(cmdId, (String) args[0]);
+                    break;
+                case "Clear":
+                    bridge.clear(cmdId, (Integer) args[0]);
+                    break;
+                case "StartImage":
+                    bridge.startImage(cmdId, (String) args[0], (Boolean) args[1], (Boolean) args[2], (Boolean) args[3], (Boolean) args[4], (Double) args[5]);
+                    break;
+                case "EndImage":
+                    bridge.endImage(cmdId);
+                    break;
+                case "DiscardRows":
+                    bridge.discardRows(cmdId, (Integer) args[0]);
+                    break;
+                case "EnterControlCommand":
+                    bridge.enterControl(cmdId);
+                    break;
+                case "ExitCommand":
+                    bridge.exitControl(cmdId);
+                    break;
+                case "StartCommand":
+                    bridge.start(cmdId, (String) args[0]);
+                    break;
+                case "StandbyCommand":
+                    bridge.standby(cmdId);
+                    break;
+                case "EnableCommand":
+                    bridge.enable(cmdId);
+                    break;
+                case "DisableCommand":
+                    bridge.disable(cmdId);
+                    break;
+                case "SetAvailableCommand":
+                    bridge.setAvailable();
+                    break;
+                case "RevokeAvailableCommand":
+                    bridge.revokeAvailable();
+                    break;
+                case "SimulateFaultCommand":
+                    bridge.simulateFault();
+                    break;
+                case "ClearFaultCommand":
+                    bridge.clearFault();
+                    break;
+                default:
+                    logger.log(Level.WARNING, "Cannot replay unknown command: {0}", name);
+            }
+        }
+    }
+
+    /**
+     * Collects the recorded session from the journal. All times are relative
+     * to the start of the journal.
+     */
+    private static class Recording implements JournalReader.JournalHandler {
+
+        private long origin = -1;
+        private long end = 0;
+        private final Map<String, String> initial = new HashMap<>();
+        private final Map<Integer, String> names = new HashMap<>();
+        private final Map<Integer, String[]> values = new HashMap<>();
+        private final List<Change> transitions = new ArrayList<>();
+        private final List<ReceivedCommand> commands = new ArrayList<>();
+        private final Map<Integer, String> outcomes = new HashMap<>();
+        private long missed;
+
+        @Override
+        public void segmentStarted(int segmentNumber, long wallTime, long timestamp) {
+            if (origin < 0) {
+                origin = timestamp;
+            }
+        }
+
+        @Override
+        public void stateDefined(int id, String enumClass, String[] stateValues, int ordinal) {
+            if (!names.containsKey(id)) {
+                // A state first seen after the start was created part way through the session
+                initial.putIfAbsent(enumClass, transitions.isEmpty() ? stateValues[ordinal] : null);
+            }
+            names.put(id, enumClass);
+            values.put(id, stateValues);
+        }
+
+        @Override
+        public void transition(int id, int oldOrdinal, int newOrdinal, long timestamp) {
+            transitions.add(new Change(time(timestamp), names.get(id), values.get(id)[newOrdinal]));
+        }
+
+        @Override
+        public void gap(long count, long timestamp) {
+            missed += count;
+        }
+
+        @Override
+        public void commandReceived(int cmdId, long timestamp, String command, Object[] args) {
+            commands.add(new ReceivedCommand(time(timestamp), cmdId, command, args));
+        }
+
+        @Override
+        public void commandRejected(int cmdId, long timestamp, String reason) {
+            outcome(cmdId, timestamp, "REJECTED");
+        }
+
+        @Override
+        public void commandCompleted(int cmdId, long timestamp) {
+            outcome(cmdId, timestamp, "COMPLETED");
+        }
+
+        @Override
+        public void commandFailed(int cmdId, long timestamp, String message) {
+            outcome(cmdId, timestamp, "FAILED");
+        }
+
+        private void outcome(int cmdId, long timestamp, String outcome) {
+            time(timestamp);
+            outcomes.put(cmdId, outcome);
+        }
+
+        private long time(long timestamp) {
+            long time = Math.max(0, timestamp - origin);
+            end = Math.max(end, time);
+            return time;
+        }
+    }
+
+    private static class OutcomeListener implements CommandListener {
+
+        private final Map<Integer, String> outcomes;
+
+        OutcomeListener(Map<Integer, String> outcomes) {
+            this.outcomes = outcomes;
+        }
+
+        @Override
+        public void commandReceived(OCSCommand command) {
+        }
+
+        @Override
+        public void commandReceived(CCSCommand command) {
+        }
+
+        @Override
+        public void commandAcknowledged(OCSCommand command, Duration timeout) {
+        }
+
+        @Override
+        public void commandRejected(OCSCommand command, String reason) {
+            outcomes.put(command.getCmdId(), "REJECTED");
+        }
+
+        @Override
+        public void commandCompleted(OCSCommand command) {
+            outcomes.put(command.getCmdId(), "COMPLETED");
+        }
+
+        @Override
+        public void commandFailed(OCSCommand command, Exception ex) {
+            outcomes.put(command.getCmdId(), "FAILED");
+        }
+    }
+
+    /**
+     * Replay a journal and print any divergences.
+     *
+     * @param args The journal directory, and optionally the speed and the
+     * tolerance in milliseconds
+     * @throws IOException If the journal cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Replay <journal directory> [speed] [tolerance ms]");
+            System.exit(1);
+        }
+        Logger.getLogger("toyocsbridge").setLevel(Level.WARNING);
+        Replay replay = new Replay(Paths.get(args[0]));
+        if (args.length > 1) {
+            replay.setSpeed(Double.parseDouble(args[1]));
+        }
+        if (args.length > 2) {
+            replay.setTolerance(Duration.ofMillis(Long.parseLong(args[2])));
+        }
+        long start = System.nanoTime();
+        List<Divergence> divergences = replay.run();
+        Duration wall = Duration.ofNanos(System.nanoTime() - start);
+        for (Divergence d : divergences) {
+            System.out.println(d);
+        }
+        System.out.printf("Replayed %d commands covering %s in %s, %d transitions recorded, %d replayed, %d divergences%n",
+                replay.recording.commands.size(), Duration.ofNanos(replay.recording.end), wall,
+                replay.recording.transitions.size(), replay.replayedTransitions, divergences.size());
+        if (replay.recording.missed > 0) {
+            System.out.printf("Warning: %d transitions were missing from the recording%n", replay.recording.missed);
+        }
+        System.exit(divergences.isEmpty() ? 0 : 2);
+    }
+}
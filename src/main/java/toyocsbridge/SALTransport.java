@@ -0,0 +1,157 @@
+package toyocsbridge;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import org.lsst.sal.SAL_camera;
+import toyocsbridge.OCSCommandExecutor.OCSCommand;
+
+/**
+ * An OCS transport which uses SAL (and hence OpenSplice DDS). All knowledge of
+ * SAL, including which SAL topic acknowledges each command, is kept here, so
+ * that the rest of the bridge can be built and run without the SAL library.
+ *
+ * @author tonyj
+ */
+class SALTransport implements OCSTransport {
+
+    private final SAL_camera mgr;
+    /**
+     * The SAL topic used to acknowledge each type of command. Commands with
+     * no SAL ack topic are not acknowledged.
+     */
+    private final Map<Class<? extends OCSCommand>, AckSender> ackSenders = new HashMap<>();
+    private volatile CommandPoller poller;
+    private volatile boolean shutdown = false;
+
+    SALTransport() {
+        mgr = new SAL_camera();
+        ackSenders.put(ToyOCSBridge.InitImageCommand.class, mgr::ackCommand_initImage);
+        ackSenders.put(ToyOCSBridge.TakeImagesCommand.class, mgr::ackCommand_takeImages);
+        ackSenders.put(ToyOCSBridge.SetFilterCommand.class, mgr::ackCommand_setFilter);
+        ackSenders.put(ToyOCSBridge.InitGuiders.class, mgr::ackCommand_initGuiders);
+        ackSenders.put(ToyOCSBridge.EnterControlCommand.class, mgr::ackCommand_enterControl);
+        ackSenders.put(ToyOCSBridge.ExitCommand.class, mgr::ackCommand_exitControl);
+        ackSenders.put(ToyOCSBridge.StartCommand.class, mgr::ackCommand_start);
+        ackSenders.put(ToyOCSBridge.StandbyCommand.class, mgr::ackCommand_standby);
+        ackSenders.put(ToyOCSBridge.EnableCommand.class, mgr::ackCommand_enable);
+        ackSenders.put(ToyOCSBridge.DisableCommand.class, mgr::ackCommand_disable);
+    }
+
+    @Override
+    public void run(ToyOCSBridge bridge) {
+        // SAL only offers a non-blocking accept for each command, so commands are
+        // polled: a single poller polls all of the topics, backing off while they
+        // are idle, which adds up to toyocsbridge.poller.maxPark to the latency.
+        List<CommandTopic<?>> topics = Arrays.asList(
+                new CommandTopic<>("setFilter", new camera.command_setFilter(), mgr::acceptCommand_setFilter,
+                        (cmdId, cmd) -> bridge.setFilter(cmdId, cmd.name)),
+                new CommandTopic<>("takeImages", new camera.command_takeImages(), mgr::acceptCommand_takeImages,
+                        (cmdId, cmd) -> bridge.takeImages(cmdId, cmd.expTime, cmd.numImages, cmd.shutter,
+                                cmd.science, cmd.wfs, cmd.guide, cmd.imageSequenceName)),
+                new CommandTopic<>("initImage", new camera.command_initImage(), mgr::acceptCommand_initImage,
+                        (cmdId, cmd) -> bridge.initImage(cmdId, cmd.deltaT)),
+                new CommandTopic<>("enable", new camera.command_enable(), mgr::acceptCommand_enable,
+                        (cmdId, cmd) -> bridge.enable(cmdId)),
+                new CommandTopic<>("disable", new camera.command_disable(), mgr::acceptCommand_disable,
+                        (cmdId, cmd) -> bridge.disable(cmdId)),
+                new CommandTopic<>("enterControl", new camera.command_enterControl(), mgr::acceptCommand_enterControl,
+                        (cmdId, cmd) -> bridge.enterControl(cmdId)),
+                new CommandTopic<>("exitControl", new camera.command_exitControl(), mgr::acceptCommand_exitControl,
+                        (cmdId, cmd) -> bridge.exitControl(cmdId)),
+                new CommandTopic<>("start", new camera.command_start(), mgr::acceptCommand_start,
+                        (cmdId, cmd) -> bridge.start(cmdId, cmd.configuration)),
+                new CommandTopic<>("standby", new camera.command_standby(), mgr::acceptCommand_standby,
+                        (cmdId, cmd) -> bridge.standby(cmdId))
+        );
+        poller = new CommandPoller(topics, CommandPoller.MAX_IDLE_PARK_NANOS);
+        if (!shutdown) {
+            poller.run();
+        }
+        mgr.salShutdown();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        CommandPoller p = poller;
+        if (p != null) {
+            p.shutdown();
+        }
+    }
+
+    @Override
+    public void ackCommand(OCSCommand command, Response response, int timeout, String message) {
+        AckSender sender = ackSenders.get(command.getClass());
+        if (sender != null) {
+            sender.ack(command.getCmdId(), toSAL(response), timeout, message);
+        }
+    }
+
+    /**
+     * Map a response to the corresponding SAL response code.
+     */
+    private static int toSAL(Response response) {
+        switch (response) {
+            case ACK:
+                return SAL_camera.SAL__CMD_ACK;
+            case INPROGRESS:
+                return SAL_camera.SAL__CMD_INPROGRESS;
+            case COMPLETE:
+                return SAL_camera.SAL__CMD_COMPLETE;
+            case NOACK:
+                return SAL_camera.SAL__CMD_NOACK;
+            case FAILED:
+                return SAL_camera.SAL__CMD_FAILED;
+            default:
+                throw new IllegalArgumentException("Unknown response " + response);
+        }
+    }
+
+    @Override
+    public void logEvent(String message, int priority) {
+        mgr.logEvent(message, priority);
+    }
+
+    /**
+     * A single SAL command topic.
+     *
+     * @param <T> The SAL command data type
+     */
+    private class CommandTopic<T> implements CommandPoller.Topic {
+
+        private final T data;
+        private final ToIntFunction<T> accept;
+        private final CommandDispatcher<T> dispatcher;
+
+        CommandTopic(String topic, T data, ToIntFunction<T> accept, CommandDispatcher<T> dispatcher) {
+            this.data = data;
+            this.accept = accept;
+            this.dispatcher = dispatcher;
+            mgr.salProcessor("camera_command_" + topic);
+        }
+
+        @Override
+        public boolean accept() {
+            int cmdId = accept.applyAsInt(data);
+            if (cmdId > 0) {
+                // Only decodes the command and queues it with the command executor
+                dispatcher.dispatch(cmdId, data);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private interface CommandDispatcher<T> {
+
+        void dispatch(int cmdId, T command);
+    }
+
+    private interface AckSender {
+
+        void ack(int cmdId, int response, int timeout, String message);
+    }
+}
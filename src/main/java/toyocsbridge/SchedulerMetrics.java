@@ -0,0 +1,217 @@
+package toyocsbridge;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Measures the tasks run by the CCS scheduler: how late each task ran
+ * compared with its intended deadline, and how long it took to run, both
+ * overall and for each place tasks are scheduled from. Since every simulated
+ * hardware move is a scheduled task, lag here directly distorts exposure and
+ * readout times.
+ * <p>
+ * The call site of a task is identified by the class of the task, which for
+ * a lambda or method reference is unique to the place in the source where
+ * it is written. The first time each class is seen the stack is examined to
+ * give the call site a readable name, after which identifying the call site
+ * is a class lookup.
+ *
+ * @author tonyj
+ */
+class SchedulerMetrics implements SchedulerStatisticsMXBean {
+
+    private static final Logger logger = Logger.getLogger(SchedulerMetrics.class.getName());
+
+    private final CCSScheduler scheduler;
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final List<Callsite> callsites = new CopyOnWriteArrayList<>();
+    private final ClassValue<Callsite> callsiteByClass = new ClassValue<Callsite>() {
+        @Override
+        protected Callsite computeValue(Class<?> taskClass) {
+            Callsite callsite = new Callsite(callsiteName(taskClass));
+            callsites.add(callsite);
+            return callsite;
+        }
+    };
+    private volatile int maxQueueDepth;
+
+    SchedulerMetrics(CCSScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Wrap a task so that it is measured when it runs. Must be called from
+     * the method which schedules the task, so that the call site can be
+     * found.
+     *
+     * @param task The task
+     * @param delay The delay with which the task is being scheduled, in
+     * nanoseconds
+     * @return The wrapped task
+     */
+    Runnable wrap(Runnable task, long delay) {
+        Callsite callsite = callsiteByClass.get(task.getClass());
+        long deadline = scheduler.nanoTime() + delay;
+        return () -> {
+            long start = started(callsite, deadline);
+            try {
+                task.run();
+            } finally {
+                callsite.runTime.record(scheduler.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Wrap a task so that it is measured when it runs, see
+     * {@link #wrap(Runnable, long)}.
+     *
+     * @param <T> The type of the result
+     * @param task The task
+     * @param delay The delay with which the task is being scheduled, in
+     * nanoseconds
+     * @return The wrapped task
+     */
+    <T> Callable<T> wrap(Callable<T> task, long delay) {
+        Callsite callsite = callsiteByClass.get(task.getClass());
+        long deadline = scheduler.nanoTime() + delay;
+        return () -> {
+            long start = started(callsite, deadline);
+            try {
+                return task.call();
+            } finally {
+                callsite.runTime.record(scheduler.nanoTime() - start);
+            }
+        };
+    }
+
+    private long started(Callsite callsite, long deadline) {
+        long start = scheduler.nanoTime();
+        lag.record(start - deadline);
+        callsite.lag.record(start - deadline);
+        return start;
+    }
+
+    /**
+     * Find the name of the method which is scheduling a task, the caller of
+     * the outermost CCS.schedule method on the stack.
+     */
+    private static String callsiteName(Class<?> taskClass) {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        for (int i = stack.length - 2; i >= 0; i--) {
+            if (stack[i].getClassName().equals(CCS.class.getName()) && stack[i].getMethodName().equals("schedule")) {
+                StackTraceElement caller = stack[i + 1];
+                String className = caller.getClassName();
+                return className.substring(className.lastIndexOf('.') + 1) + "." + caller.getMethodName() + ":" + caller.getLineNumber();
+            }
+        }
+        return taskClass.getName();
+    }
+
+    LatencyHistogram getLagHistogram() {
+        return lag;
+    }
+
+    List<Callsite> getCallsites() {
+        return new ArrayList<>(callsites);
+    }
+
+    /**
+     * Publish the statistics in the platform MBean server, as
+     * <code>toyocsbridge:type=SchedulerStatistics,name=&lt;name&gt;</code>.
+     *
+     * @param name The name of the CCS instance, see {@link CCS#getName()}
+     */
+    void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("toyocsbridge:type=SchedulerStatistics,name=" + name));
+        } catch (JMException x) {
+            logger.log(Level.WARNING, "Unable to register scheduler statistics", x);
+        }
+    }
+
+    @Override
+    public LatencySummary getLag() {
+        return lag.getSummary();
+    }
+
+    /**
+     * Reading the queue depth of some schedulers takes a lock, so rather than
+     * on every schedule the depth is sampled, and the maximum updated, each
+     * time it is read.
+     */
+    @Override
+    public int getQueueDepth() {
+        int depth = scheduler.getQueueDepth();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        return depth;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        getQueueDepth();
+        return maxQueueDepth;
+    }
+
+    @Override
+    public int getCancelledQueued() {
+        return scheduler.getCancelledQueued();
+    }
+
+    @Override
+    public Map<String, LatencySummary> getCallsiteLag() {
+        Map<String, LatencySummary> result = new TreeMap<>();
+        for (Callsite c : callsites) {
+            result.put(c.name, c.lag.getSummary());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, LatencySummary> getCallsiteRunTime() {
+        Map<String, LatencySummary> result = new TreeMap<>();
+        for (Callsite c : callsites) {
+            result.put(c.name, c.runTime.getSummary());
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        lag.reset();
+        maxQueueDepth = 0;
+        for (Callsite c : callsites) {
+            c.lag.reset();
+            c.runTime.reset();
+        }
+    }
+
+    /**
+     * The statistics for one place tasks are scheduled from.
+     */
+    static class Callsite {
+
+        private final String name;
+        final LatencyHistogram lag = new LatencyHistogram();
+        final LatencyHistogram runTime = new LatencyHistogram();
+
+        Callsite(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package toyocsbridge;
+
+import java.util.Map;
+
+/**
+ * The timing of tasks run by the CCS scheduler, as published over JMX.
+ *
+ * @author tonyj
+ */
+public interface SchedulerStatisticsMXBean {
+
+    /**
+     * @return How late tasks ran, compared with their intended deadline
+     */
+    LatencySummary getLag();
+
+    /**
+     * @return The number of tasks waiting to run, including cancelled tasks
+     * which have not yet been removed
+     */
+    int getQueueDepth();
+
+    /**
+     * @return The largest queue depth seen when the statistics were read
+     */
+    int getMaxQueueDepth();
+
+    /**
+     * @return The number of cancelled tasks still waiting in the queue
+     */
+    int getCancelledQueued();
+
+    /**
+     * @return How late tasks ran, for each place tasks are scheduled from
+     */
+    Map<String, LatencySummary> getCallsiteLag();
+
+    /**
+     * @return How long tasks took to run, for each place tasks are scheduled
+     * from
+     */
+    Map<String, LatencySummary> getCallsiteRunTime();
+
+    /**
+     * Clear all the histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,188 @@
+package toyocsbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An executor which runs tasks one at a time, in submission order, on the
+ * threads of another executor, without a thread of its own. Any number of
+ * serial executors can share one thread pool. Tasks must not block, since
+ * a blocked task holds on to a thread of the shared pool.
+ *
+ * @author tonyj
+ */
+class SerialExecutor extends AbstractExecutorService {
+
+    private static final Logger logger = Logger.getLogger(SerialExecutor.class.getName());
+    /**
+     * The number of tasks run before giving the thread back to the pool, so
+     * that one busy executor cannot starve the others.
+     */
+    private static final int BATCH = 64;
+
+    private final String name;
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable drain = this::drain;
+    private final Object termination = new Object();
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create a serial executor.
+     *
+     * @param name The name of the executor, used in error messages
+     * @param executor The executor which provides the threads
+     */
+    SerialExecutor(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException(name + " shut down");
+        }
+        tasks.add(command);
+        if (scheduled.compareAndSet(false, true)) {
+            submitDrain();
+        }
+    }
+
+    /**
+     * Submit a drain to the underlying executor. Called only by the thread
+     * which set the scheduled flag. If the executor rejects the drain none of
+     * the queued tasks can run, so all of them, including any added by other
+     * threads while the flag was set, are discarded, and the flag is cleared.
+     *
+     * @throws RejectedExecutionException If the drain was rejected
+     */
+    private void submitDrain() {
+        for (;;) {
+            try {
+                executor.execute(drain);
+                return;
+            } catch (RejectedExecutionException x) {
+                int discarded = discardQueued();
+                scheduled.set(false);
+                // A task may have been added after the queue was emptied, but before the flag was cleared
+                if (tasks.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    logger.log(Level.WARNING, "{0} rejected by its executor, {1} tasks discarded", new Object[]{name, discarded});
+                    signalIfTerminated();
+                    throw x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all queued tasks. Tasks which are futures (from
+     * {@link #submit}) are cancelled, so that nothing waits for them.
+     *
+     * @return The number of tasks removed
+     */
+    private int discardQueued() {
+        int n = 0;
+        for (Runnable task; (task = tasks.poll()) != null; n++) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+        return n;
+    }
+
+    private void drain() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                scheduled.set(false);
+                // A task may have been added after the poll, but before the flag was cleared
+                if (tasks.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    signalIfTerminated();
+                    return;
+                }
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException x) {
+                logger.log(Level.WARNING, "Error running task on " + name, x);
+            }
+        }
+        try {
+            submitDrain();
+        } catch (RejectedExecutionException x) {
+            // Already logged, and there is no caller to tell
+        }
+    }
+
+    /**
+     * Wake up any threads waiting for termination, if the executor has
+     * terminated.
+     */
+    private void signalIfTerminated() {
+        if (isTerminated()) {
+            synchronized (termination) {
+                termination.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        signalIfTerminated();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> result = new ArrayList<>();
+        for (Runnable task; (task = tasks.poll()) != null;) {
+            result.add(task);
+        }
+        signalIfTerminated();
+        return result;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && tasks.isEmpty() && !scheduled.get();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (termination) {
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(termination, remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "SerialExecutor{" + name + '}';
+    }
+}
@@ -0,0 +1,254 @@
+package toyocsbridge;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single timing wheel and pool of threads shared by many CCS instances, so
+ * that hundreds of simulated cameras can run in one JVM without each creating
+ * its own threads. Each CCS is given its own view of the shared scheduler, see
+ * {@link #newScheduler()}, and keeps its own states, listeners and metrics.
+ * <p>
+ * Within a view the serial executors used by the OCS command executor, and the
+ * event bus subscribers, run on the shared pool rather than on threads of
+ * their own. Shutting down a view (for example by shutting down its CCS)
+ * stops its tasks from running, without affecting the other views. A view
+ * has terminated once no task of its is running or waiting to run, other
+ * than timers, which do nothing when they fire.
+ *
+ * @author tonyj
+ */
+class SharedScheduler implements Closeable {
+
+    private final TimingWheelScheduler scheduler;
+    private final AtomicInteger instances = new AtomicInteger();
+
+    /**
+     * Create a shared scheduler.
+     *
+     * @param nThreads The number of threads used to run the tasks of all
+     * instances
+     */
+    SharedScheduler(int nThreads) {
+        scheduler = new TimingWheelScheduler(nThreads);
+    }
+
+    /**
+     * Create a view of the shared scheduler for one CCS.
+     *
+     * @return The scheduler to pass to the CCS
+     */
+    CCSScheduler newScheduler() {
+        return new View(instances.getAndIncrement());
+    }
+
+    /**
+     * Create a bridge, with its own CCS, running on the shared scheduler.
+     *
+     * @return The bridge
+     */
+    ToyOCSBridge newBridge() {
+        return new ToyOCSBridge(new CCS(newScheduler()));
+    }
+
+    /**
+     * @return The number of tasks waiting in the shared scheduler, for all
+     * instances
+     */
+    int getQueueDepth() {
+        return scheduler.getQueueDepth();
+    }
+
+    /**
+     * Shut down the shared scheduler, and so all the instances using it.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * The scheduler seen by one CCS instance. Tasks are run by the shared
+     * scheduler, guarded so that they do nothing once the view is shut down.
+     */
+    private class View extends AbstractExecutorService implements CCSScheduler {
+
+        private final int instance;
+        /**
+         * The number of tasks passed to {@link #execute} which have not yet
+         * finished, plus the number of timers currently running.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Object termination = new Object();
+        private volatile boolean shutdown = false;
+
+        View(int instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public long nanoTime() {
+            return scheduler.nanoTime();
+        }
+
+        /**
+         * Queue depth and cancelled tasks are for the shared scheduler as a
+         * whole.
+         */
+        @Override
+        public int getQueueDepth() {
+            return scheduler.getQueueDepth();
+        }
+
+        @Override
+        public int getCancelledQueued() {
+            return scheduler.getCancelledQueued();
+        }
+
+        @Override
+        public ExecutorService newSerialExecutor(String name) {
+            return new SerialExecutor(name + "-" + instance, this);
+        }
+
+        @Override
+        public Executor getSubscriberExecutor() {
+            return this;
+        }
+
+        private void checkShutdown() {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler shut down");
+            }
+        }
+
+        /**
+         * Guard a timer, counting it as in flight while it runs. The count is
+         * incremented before the shutdown flag is tested, so a timer which
+         * sees the view running is waited for by {@link #awaitTermination}.
+         */
+        private Runnable guard(Runnable command) {
+            return () -> {
+                inFlight.incrementAndGet();
+                try {
+                    if (!shutdown) {
+                        command.run();
+                    }
+                } finally {
+                    taskDone();
+                }
+            };
+        }
+
+        private <V> Callable<V> guard(Callable<V> callable) {
+            return () -> {
+                inFlight.incrementAndGet();
+                try {
+                    return shutdown ? null : callable.call();
+                } finally {
+                    taskDone();
+                }
+            };
+        }
+
+        private void taskDone() {
+            if (inFlight.decrementAndGet() == 0 && shutdown) {
+                synchronized (termination) {
+                    termination.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            checkShutdown();
+            return scheduler.schedule(guard(command), delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            checkShutdown();
+            return scheduler.schedule(guard(callable), delay, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            checkShutdown();
+            return scheduler.scheduleAtFixedRate(guard(command), initialDelay, period, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            checkShutdown();
+            return scheduler.scheduleWithFixedDelay(guard(command), initialDelay, delay, unit);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            checkShutdown();
+            // Counted from submission, so that queued tasks are waited for too
+            inFlight.incrementAndGet();
+            try {
+                scheduler.execute(() -> {
+                    try {
+                        if (!shutdown) {
+                            command.run();
+                        }
+                    } finally {
+                        taskDone();
+                    }
+                });
+            } catch (RejectedExecutionException x) {
+                taskDone();
+                throw x;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            synchronized (termination) {
+                termination.notifyAll();
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && inFlight.get() == 0;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (termination) {
+                while (!isTerminated()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(termination, remaining);
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package toyocsbridge;
 
 import java.time.Duration;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Very simple shutter simulation
@@ -35,7 +36,7 @@ public class Shutter {
 
     private final State shutterReadinessState;
     private final State shutterState;
-    private ScheduledFuture<?> notReadyFuture;
+    private volatile ScheduledFuture<?> notReadyFuture;
 
     private final CCS ccs;
 
@@ -74,6 +75,26 @@ public class Shutter {
         });
     }
 
+    /**
+     * Test whether the shutter must be prepared before an exposure starting
+     * in the given time. It must if it is not ready, or if its readiness will
+     * lapse before then. A shutter which is moving was ready when it started
+     * to open, and stays ready for {@link #READY_TIME} once it has closed, so
+     * does not need preparing.
+     *
+     * @param startIn The time until the exposure starts
+     * @return <code>true</code> if the shutter should be prepared
+     */
+    boolean needsPrepare(Duration startIn) {
+        if (!shutterState.isInState(ShutterState.CLOSED)
+                || shutterReadinessState.isInState(ShutterReadinessState.GETTING_READY)) {
+            return false;
+        }
+        ScheduledFuture<?> timer = notReadyFuture;
+        return shutterReadinessState.isInState(ShutterReadinessState.NOT_READY)
+                || timer == null || timer.getDelay(TimeUnit.NANOSECONDS) <= startIn.toNanos();
+    }
+
     void expose(Duration exposureTime) {
         shutterReadinessState.checkState(ShutterReadinessState.READY);
         shutterState.checkState(ShutterState.CLOSED);
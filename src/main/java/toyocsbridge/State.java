@@ -1,10 +1,7 @@
 package toyocsbridge;
 
+import java.time.Duration;
 import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Encapsulates a state, and generates state change events.
@@ -14,11 +11,23 @@ import java.util.logging.Logger;
  */
 public class State<T extends Enum> {
 
-    private T currentState;
+    /**
+     * Volatile since states are changed from the scheduler threads, and read
+     * from the command threads, the GUI and listeners. To test several states
+     * consistently use {@link AggregateStatus#snapshot()}.
+     */
+    private volatile T currentState;
     private final Class<T> enumClass;
+    private final T[] values;
+    private final int id;
     private final CCS ccs;
-    private final List<StateChangeListener<T>> listeners = new CopyOnWriteArrayList<>();
-    private static final Logger logger = Logger.getLogger(State.class.getName());
+    private final AggregateStatus as;
+    private final StateResidency residency;
+    /**
+     * Copy on write array of listeners, iterated without allocation on every
+     * transition.
+     */
+    private volatile StateChangeListener<T>[] listeners = new StateChangeListener[0];
 
     /**
      * Constructor
@@ -29,26 +38,33 @@ public class State<T extends Enum> {
     State(CCS ccs, T initialState) {
         this.ccs = ccs;
         this.enumClass = (Class<T>) initialState.getClass();
+        this.values = enumClass.getEnumConstants();
         currentState = initialState;
-        ccs.getAggregateStatus().add(this);
+        residency = new StateResidency(values.length, ccs.nanoTime());
+        as = ccs.getAggregateStatus();
+        id = as.add(this);
     }
 
     /**
      * Changes the current state. Generates a status change notification when
-     * the status is changed.
+     * the status is changed. This is the hot path of the state machine, and
+     * does not allocate; the transition is published to the CCS event bus as
+     * primitive values, and any text (such as the log message) is produced by
+     * the subscribers which need it.
      *
      * @param state The new state
      */
     void setState(T state) {
         if (currentState != state) {
             T oldState = currentState;
+            long now = ccs.nanoTime();
             currentState = state;
-            logger.log(Level.INFO, String.format("State Changed %s: %s->%s",currentState.getClass().getSimpleName(), oldState, currentState));
-
-            for (StateChangeListener l : listeners) {
+            as.update(id, state.ordinal());
+            residency.transition(oldState.ordinal(), state.ordinal(), now);
+            for (StateChangeListener<T> l : listeners) {
                 l.stateChanged(this, oldState);
             }
-            ccs.notifyStateChanged(this, oldState);
+            ccs.notifyStateChanged(this, oldState, state, now);
         }
     }
 
@@ -60,16 +76,52 @@ public class State<T extends Enum> {
         return enumClass;
     }
 
+    /**
+     * @return The id of this state within the CCS aggregate status
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Look up one of the values of this state by ordinal.
+     *
+     * @param ordinal The ordinal
+     * @return The corresponding value
+     */
+    T valueOf(int ordinal) {
+        return values[ordinal];
+    }
+
+    /**
+     * Get the total time this state has spent in the given value, including
+     * the time so far if it is the current value.
+     *
+     * @param value The value
+     * @return The time
+     */
+    Duration getResidency(T value) {
+        return Duration.ofNanos(residency.getResidency(value.ordinal(), currentState.ordinal(), ccs.nanoTime()));
+    }
+
+    /**
+     * @param value The value
+     * @return The number of times this state has changed to the given value
+     */
+    long getTransitions(T value) {
+        return residency.getTransitions(value.ordinal());
+    }
+
     boolean isInState(T state) {
         return currentState == state;
     }
     
-    void addStateChangeListener(StateChangeListener<T> listener) {
-        listeners.add(listener);
+    synchronized void addStateChangeListener(StateChangeListener<T> listener) {
+        listeners = Listeners.add(listeners, listener);
     }
     
-    void removeStateChangeListener(StateChangeListener<T> listener) {
-        listeners.remove(listener);
+    synchronized void removeStateChangeListener(StateChangeListener<T> listener) {
+        listeners = Listeners.remove(listeners, listener);
     }
 
     /**
@@ -0,0 +1,315 @@
+package toyocsbridge;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes state transitions to asynchronous subscribers through a
+ * preallocated ring buffer. Each subscriber runs on its own thread and reads
+ * the ring at its own pace, tracking its own sequence. Publishing never
+ * blocks and never allocates: a subscriber which falls more than a full ring
+ * behind skips the events it has missed, and the number missed is recorded,
+ * so a slow subscriber can never stall the state machine.
+ * <p>
+ * Alternatively subscribers can be run on a shared executor, for when many
+ * buses exist in one JVM. A subscriber is then submitted to the executor
+ * when an event is published while it is idle, and delivers a batch of
+ * events before giving the thread back. Waking an idle subscriber this way
+ * may allocate in the executor.
+ *
+ * @author tonyj
+ */
+class StateEventBus {
+
+    private static final Logger logger = Logger.getLogger(StateEventBus.class.getName());
+    private static final int SLOT_SIZE = 3;
+    private static final int SEQUENCE = 0;
+    private static final int DATA = 1;
+    private static final int TIMESTAMP = 2;
+    /**
+     * The number of events a subscriber running on an executor delivers
+     * before giving its thread back.
+     */
+    private static final int BATCH = 256;
+
+    private final AggregateStatus as;
+    private final int capacity;
+    private final int mask;
+    /**
+     * Each slot holds the sequence number of the event it contains (or -1
+     * while it is being written), the packed event and the timestamp.
+     */
+    private final AtomicLongArray ring;
+    private final Executor executor;
+    /**
+     * The next sequence number to be claimed by a publisher.
+     */
+    private final AtomicLong cursor = new AtomicLong();
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * Create an event bus
+     *
+     * @param as The aggregate status used to look up states by id
+     * @param capacity The capacity of the ring, must be a power of 2
+     */
+    StateEventBus(AggregateStatus as, int capacity) {
+        this(as, capacity, null);
+    }
+
+    /**
+     * Create an event bus
+     *
+     * @param as The aggregate status used to look up states by id
+     * @param capacity The capacity of the ring, must be a power of 2
+     * @param executor The executor on which to run subscribers, or
+     * <code>null</code> to give each subscriber its own thread
+     */
+    StateEventBus(AggregateStatus as, int capacity, Executor executor) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        }
+        this.as = as;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.executor = executor;
+        ring = new AtomicLongArray(capacity * SLOT_SIZE);
+        for (int i = 0; i < capacity; i++) {
+            ring.set(i * SLOT_SIZE + SEQUENCE, -1);
+        }
+    }
+
+    /**
+     * Publish a state transition. May be called from any thread.
+     *
+     * @param stateId The id of the state which changed
+     * @param oldOrdinal The ordinal of the previous state
+     * @param newOrdinal The ordinal of the new state
+     * @param timestamp The time of the transition in nanoseconds
+     */
+    void publish(int stateId, int oldOrdinal, int newOrdinal, long timestamp) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & mask) * SLOT_SIZE;
+        ring.set(slot + SEQUENCE, -1);
+        ring.set(slot + DATA, pack(stateId, oldOrdinal, newOrdinal));
+        ring.set(slot + TIMESTAMP, timestamp);
+        ring.set(slot + SEQUENCE, sequence);
+        for (Subscription s : subscriptions) {
+            s.wake();
+        }
+    }
+
+    /**
+     * Subscribe to state transitions. The handler is called on a new thread
+     * dedicated to this subscription (or on the bus's executor, if it has
+     * one), for every transition published after this call.
+     *
+     * @param name The name of the subscription, used to name its thread
+     * @param handler The handler
+     * @return The subscription
+     */
+    synchronized Subscription subscribe(String name, StateEventHandler handler) {
+        Subscription subscription = new Subscription(name, handler, cursor.get());
+        Subscription[] newSubscriptions = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        newSubscriptions[subscriptions.length] = subscription;
+        subscriptions = newSubscriptions;
+        if (subscription.thread != null) {
+            subscription.thread.start();
+        }
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] newSubscriptions = new Subscription[subscriptions.length];
+        int n = 0;
+        for (Subscription s : subscriptions) {
+            if (s != subscription) {
+                newSubscriptions[n++] = s;
+            }
+        }
+        subscriptions = Arrays.copyOf(newSubscriptions, n);
+    }
+
+    /**
+     * @return The total number of events published
+     */
+    long getPublishedCount() {
+        return cursor.get();
+    }
+
+    private static long pack(int stateId, int oldOrdinal, int newOrdinal) {
+        return ((long) stateId << 32) | ((long) (oldOrdinal & 0xffff) << 16) | (newOrdinal & 0xffff);
+    }
+
+    /**
+     * Receives state transitions from the event bus.
+     */
+    static interface StateEventHandler {
+
+        /**
+         * Called for each transition.
+         *
+         * @param state The state which changed
+         * @param oldState The value before the transition
+         * @param newState The value after the transition
+         * @param timestamp The CCS time of the transition in nanoseconds
+         */
+        void stateChanged(State<?> state, Enum oldState, Enum newState, long timestamp);
+    }
+
+    /**
+     * A subscriber to the event bus, with its own position in the ring.
+     */
+    class Subscription implements Runnable {
+
+        private final String name;
+        private final StateEventHandler handler;
+        private final Thread thread;
+        private volatile long next;
+        private final AtomicLong missed = new AtomicLong();
+        private volatile boolean waiting = false;
+        private volatile boolean closed = false;
+        /**
+         * Set while a subscriber running on the executor has been submitted.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Runnable drain = this::drain;
+
+        private Subscription(String name, StateEventHandler handler, long next) {
+            this.name = name;
+            this.handler = handler;
+            this.next = next;
+            this.thread = executor == null ? new NamedThreadFactory("StateEventBus-" + name).newThread(this) : null;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                if (!deliverNext()) {
+                    waiting = true;
+                    // Recheck after announcing that we are waiting, so no wake up is missed
+                    if (cursor.get() == next && !closed) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                }
+            }
+        }
+
+        /**
+         * Deliver a batch of events on the executor.
+         */
+        private void drain() {
+            for (int i = 0; i < BATCH && !closed; i++) {
+                if (!deliverNext()) {
+                    scheduled.set(false);
+                    // An event may have been published after the check, but before the flag was cleared
+                    if (cursor.get() == next || closed || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            }
+            if (!closed) {
+                submit();
+            }
+        }
+
+        private void wake() {
+            if (thread != null) {
+                if (waiting) {
+                    LockSupport.unpark(thread);
+                }
+            } else if (!scheduled.get() && scheduled.compareAndSet(false, true)) {
+                submit();
+            }
+        }
+
+        private void submit() {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException x) {
+                // The executor has been shut down, so there is no one left to deliver to
+                scheduled.set(false);
+            }
+        }
+
+        /**
+         * Deliver the next event, if there is one.
+         *
+         * @return <code>false</code> if there are no more events to deliver
+         */
+        private boolean deliverNext() {
+            long sequence = next;
+            int slot = (int) (sequence & mask) * SLOT_SIZE;
+            if (ring.get(slot + SEQUENCE) == sequence) {
+                long data = ring.get(slot + DATA);
+                long timestamp = ring.get(slot + TIMESTAMP);
+                // Check that the slot was not overwritten while we were reading it
+                if (ring.get(slot + SEQUENCE) == sequence) {
+                    next = sequence + 1;
+                    deliver(data, timestamp);
+                    return true;
+                }
+            }
+            long published = cursor.get();
+            if (published - sequence > capacity) {
+                // We have been lapped, skip to the oldest event still in the ring
+                long oldest = published - capacity;
+                missed.addAndGet(oldest - sequence);
+                next = oldest;
+            } else if (published == sequence) {
+                return false;
+            } else {
+                // The event has been claimed but is still being written
+                Thread.yield();
+            }
+            return true;
+        }
+
+        private void deliver(long data, long timestamp) {
+            State<?> state = as.getState((int) (data >>> 32));
+            Enum oldState = state.valueOf((int) (data >>> 16) & 0xffff);
+            Enum newState = state.valueOf((int) data & 0xffff);
+            try {
+                handler.stateChanged(state, oldState, newState, timestamp);
+            } catch (RuntimeException x) {
+                logger.log(Level.WARNING, "Error in state event handler " + name, x);
+            }
+        }
+
+        /**
+         * @return The number of events published but not yet handled by this
+         * subscriber.
+         */
+        long getLag() {
+            return Math.max(0, cursor.get() - next);
+        }
+
+        /**
+         * @return The number of events this subscriber skipped because it fell
+         * too far behind.
+         */
+        long getMissed() {
+            return missed.get();
+        }
+
+        String getName() {
+            return name;
+        }
+
+        void close() {
+            closed = true;
+            unsubscribe(this);
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package toyocsbridge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates how long a state has spent in each of its values, and how many
+ * times each value has been entered. Updated on every transition of the
+ * state, using only primitive counters, so it does not allocate.
+ *
+ * @author tonyj
+ */
+class StateResidency {
+
+    private final AtomicLongArray residency;
+    private final AtomicLongArray entries;
+    /**
+     * When the current value was entered.
+     */
+    private volatile long enteredTime;
+
+    StateResidency(int nValues, long now) {
+        residency = new AtomicLongArray(nValues);
+        entries = new AtomicLongArray(nValues);
+        enteredTime = now;
+    }
+
+    /**
+     * Record a transition.
+     *
+     * @param oldOrdinal The ordinal of the value being left
+     * @param newOrdinal The ordinal of the value being entered
+     * @param now The time of the transition
+     */
+    void transition(int oldOrdinal, int newOrdinal, long now) {
+        residency.addAndGet(oldOrdinal, now - enteredTime);
+        entries.incrementAndGet(newOrdinal);
+        enteredTime = now;
+    }
+
+    /**
+     * Get the total time spent in a value, including the time so far if it
+     * is the current value.
+     *
+     * @param ordinal The ordinal of the value
+     * @param currentOrdinal The ordinal of the current value
+     * @param now The current time
+     * @return The time in nanoseconds
+     */
+    long getResidency(int ordinal, int currentOrdinal, long now) {
+        long result = residency.get(ordinal);
+        return ordinal == currentOrdinal ? result + Math.max(0, now - enteredTime) : result;
+    }
+
+    /**
+     * @param ordinal The ordinal of the value
+     * @return The number of times the value has been entered
+     */
+    long getTransitions(int ordinal) {
+        return entries.get(ordinal);
+    }
+}
@@ -0,0 +1,302 @@
+package toyocsbridge;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A condition on the aggregate status, which can be waited for using
+ * {@link CCS#waitForAsync(StatusPredicate, Duration)}. Predicates are built
+ * from single states, combined with {@link #allOf}, {@link #anyOf} and
+ * {@link #not}. A predicate can also be required to hold continuously for a
+ * minimum time, using {@link #heldFor}; such a predicate can be waited for,
+ * but cannot be combined further.
+ * <p>
+ * A predicate is evaluated against a single consistent snapshot of the
+ * aggregate status, so a combination of states is only seen as true if it
+ * held at one instant. Only {@link #heldFor} looks at how long it has held.
+ * <p>
+ * Predicates are immutable, so can be built once and reused.
+ *
+ * @author tonyj
+ */
+abstract class StatusPredicate {
+
+    private StatusPredicate() {
+    }
+
+    /**
+     * A predicate which is true while the given state is present.
+     *
+     * @param state The state
+     * @return The predicate
+     */
+    static StatusPredicate is(Enum state) {
+        return new Is(state);
+    }
+
+    /**
+     * A predicate which is true while all the given states are present.
+     *
+     * @param states The states
+     * @return The predicate
+     */
+    static StatusPredicate allOf(Enum... states) {
+        return new AllOf(predicates(states));
+    }
+
+    /**
+     * A predicate which is true while all the given predicates are true.
+     *
+     * @param predicates The predicates
+     * @return The predicate
+     */
+    static StatusPredicate allOf(StatusPredicate... predicates) {
+        return new AllOf(checkCombinable(predicates));
+    }
+
+    /**
+     * A predicate which is true while any of the given states is present.
+     *
+     * @param states The states
+     * @return The predicate
+     */
+    static StatusPredicate anyOf(Enum... states) {
+        return new AnyOf(predicates(states));
+    }
+
+    /**
+     * A predicate which is true while any of the given predicates is true.
+     *
+     * @param predicates The predicates
+     * @return The predicate
+     */
+    static StatusPredicate anyOf(StatusPredicate... predicates) {
+        return new AnyOf(checkCombinable(predicates));
+    }
+
+    /**
+     * A predicate which is true while the given state is not present.
+     *
+     * @param state The state
+     * @return The predicate
+     */
+    static StatusPredicate not(Enum state) {
+        return new Not(is(state));
+    }
+
+    /**
+     * A predicate which is true while the given predicate is false.
+     *
+     * @param predicate The predicate
+     * @return The predicate
+     */
+    static StatusPredicate not(StatusPredicate predicate) {
+        return new Not(checkCombinable(predicate)[0]);
+    }
+
+    /**
+     * A predicate which is satisfied once this predicate has been true
+     * continuously for the given time.
+     *
+     * @param time The minimum time the predicate must hold
+     * @return The predicate
+     */
+    StatusPredicate heldFor(Duration time) {
+        return new HeldFor(checkCombinable(this)[0], time);
+    }
+
+    /**
+     * Evaluate the predicate against the current status. All the states
+     * referenced by the predicate are read together, from one snapshot.
+     *
+     * @param as The aggregate status
+     * @return <code>true</code> if the predicate is true
+     */
+    final boolean test(AggregateStatus as) {
+        return test(as.snapshot());
+    }
+
+    /**
+     * Evaluate the predicate against a snapshot of the status.
+     *
+     * @param snapshot The snapshot
+     * @return <code>true</code> if the predicate is true
+     */
+    abstract boolean test(AggregateStatus.Snapshot snapshot);
+
+    /**
+     * Add the classes of all the states referenced by this predicate to the
+     * given set. The predicate only needs to be re-evaluated when one of
+     * these changes.
+     *
+     * @param states The set to add to
+     */
+    abstract void collectStates(Set<Class<? extends Enum>> states);
+
+    /**
+     * @return How long the predicate must hold before it is satisfied
+     */
+    Duration getHoldTime() {
+        return Duration.ZERO;
+    }
+
+    private static StatusPredicate[] predicates(Enum[] states) {
+        return Arrays.stream(states).map(StatusPredicate::is).toArray(StatusPredicate[]::new);
+    }
+
+    private static StatusPredicate[] checkCombinable(StatusPredicate... predicates) {
+        for (StatusPredicate p : predicates) {
+            if (p instanceof HeldFor) {
+                throw new IllegalArgumentException("A held predicate cannot be combined: " + p);
+            }
+        }
+        return predicates;
+    }
+
+    private static String describe(String name, StatusPredicate[] predicates) {
+        return Arrays.stream(predicates).map(Object::toString).collect(Collectors.joining(", ", name + "(", ")"));
+    }
+
+    private static class Is extends StatusPredicate {
+
+        private final Enum state;
+
+        Is(Enum state) {
+            this.state = state;
+        }
+
+        @Override
+        boolean test(AggregateStatus.Snapshot snapshot) {
+            return snapshot.hasState(state);
+        }
+
+        @Override
+        void collectStates(Set<Class<? extends Enum>> states) {
+            states.add(state.getClass());
+        }
+
+        @Override
+        public String toString() {
+            return state.getClass().getSimpleName() + "." + state;
+        }
+    }
+
+    private static class AllOf extends StatusPredicate {
+
+        private final StatusPredicate[] predicates;
+
+        AllOf(StatusPredicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        @Override
+        boolean test(AggregateStatus.Snapshot snapshot) {
+            for (StatusPredicate p : predicates) {
+                if (!p.test(snapshot)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void collectStates(Set<Class<? extends Enum>> states) {
+            for (StatusPredicate p : predicates) {
+                p.collectStates(states);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return describe("allOf", predicates);
+        }
+    }
+
+    private static class AnyOf extends StatusPredicate {
+
+        private final StatusPredicate[] predicates;
+
+        AnyOf(StatusPredicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        @Override
+        boolean test(AggregateStatus.Snapshot snapshot) {
+            for (StatusPredicate p : predicates) {
+                if (p.test(snapshot)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void collectStates(Set<Class<? extends Enum>> states) {
+            for (StatusPredicate p : predicates) {
+                p.collectStates(states);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return describe("anyOf", predicates);
+        }
+    }
+
+    private static class Not extends StatusPredicate {
+
+        private final StatusPredicate predicate;
+
+        Not(StatusPredicate predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        boolean test(AggregateStatus.Snapshot snapshot) {
+            return !predicate.test(snapshot);
+        }
+
+        @Override
+        void collectStates(Set<Class<? extends Enum>> states) {
+            predicate.collectStates(states);
+        }
+
+        @Override
+        public String toString() {
+            return "not(" + predicate + ")";
+        }
+    }
+
+    private static class HeldFor extends StatusPredicate {
+
+        private final StatusPredicate predicate;
+        private final Duration time;
+
+        HeldFor(StatusPredicate predicate, Duration time) {
+            this.predicate = predicate;
+            this.time = time;
+        }
+
+        @Override
+        boolean test(AggregateStatus.Snapshot snapshot) {
+            return predicate.test(snapshot);
+        }
+
+        @Override
+        void collectStates(Set<Class<? extends Enum>> states) {
+            predicate.collectStates(states);
+        }
+
+        @Override
+        Duration getHoldTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return predicate + ".heldFor(" + time + ")";
+        }
+    }
+}
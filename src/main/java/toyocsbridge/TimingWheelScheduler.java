@@ -0,0 +1,410 @@
+package toyocsbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A real time scheduler based on a hashed timing wheel. The CCS timer
+ * workload is dominated by short timers which are usually cancelled before
+ * they fire (the rafts clear timer, the shutter not-ready timer, the timeouts
+ * of waiters), for which a timing wheel gives constant time scheduling and
+ * cancellation, and cancelled timers are removed from the wheel on the next
+ * tick rather than staying queued until their deadline.
+ * <p>
+ * Time is divided into ticks, and each slot of the wheel holds the timers
+ * which expire in the ticks which hash to it, together with the number of
+ * further rotations of the wheel before they are due. A single timer thread
+ * advances the wheel once per tick; it is the only thread which touches the
+ * wheel, so new and cancelled timers are handed to it through lock free
+ * queues. Expired tasks are run by a pool of worker threads, so a slow task
+ * does not hold up the wheel. Tasks run up to one tick after their deadline.
+ * Delays are capped at about 146 years, so that deadlines do not overflow.
+ *
+ * @author tonyj
+ */
+class TimingWheelScheduler extends AbstractExecutorService implements CCSScheduler {
+
+    /**
+     * The longest delay honoured. Longer delays (such as Long.MAX_VALUE) are
+     * cut to this, which keeps deadlines well clear of overflow.
+     */
+    private static final long MAX_DELAY_NANOS = Long.MAX_VALUE >> 1;
+
+    private final long tickNanos;
+    private final WheelTask<?>[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final ExecutorService workers;
+    private final Thread timerThread;
+    /**
+     * Timers scheduled, but not yet placed in the wheel by the timer thread.
+     */
+    private final Queue<WheelTask<?>> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * Timers cancelled, but not yet removed from the wheel by the timer
+     * thread.
+     */
+    private final Queue<WheelTask<?>> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger cancelledQueued = new AtomicInteger();
+    /**
+     * The tasks which were still waiting when the wheel stopped. Written by
+     * the timer thread as it exits.
+     */
+    private final List<Runnable> unrun = new ArrayList<>();
+    private volatile boolean shutdown = false;
+    /**
+     * The number of ticks processed so far. Only accessed by the timer
+     * thread.
+     */
+    private long tick = 0;
+
+    /**
+     * Create a timing wheel scheduler with a 1ms tick and 512 slots (so
+     * timers up to about half a second away need no extra rotations).
+     *
+     * @param nThreads The number of threads used to run tasks
+     */
+    TimingWheelScheduler(int nThreads) {
+        this(nThreads, 1, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Create a timing wheel scheduler.
+     *
+     * @param nThreads The number of threads used to run tasks
+     * @param tickDuration The duration of one tick
+     * @param unit The unit of the tick duration
+     * @param slots The number of slots in the wheel, must be a power of 2
+     */
+    TimingWheelScheduler(int nThreads, long tickDuration, TimeUnit unit, int slots) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Slots must be a power of 2: " + slots);
+        }
+        tickNanos = unit.toNanos(tickDuration);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Invalid tick duration: " + tickDuration);
+        }
+        wheel = new WheelTask<?>[slots];
+        mask = slots - 1;
+        workers = Executors.newFixedThreadPool(nThreads, new NamedThreadFactory("CCSScheduler"));
+        startTime = System.nanoTime();
+        timerThread = new NamedThreadFactory("CCSTimer").newThread(this::runWheel);
+        timerThread.start();
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public int getCancelledQueued() {
+        return cancelledQueued.get();
+    }
+
+    private void runWheel() {
+        while (!shutdown) {
+            long tickDeadline = startTime + (tick + 1) * tickNanos;
+            for (long wait; (wait = tickDeadline - System.nanoTime()) > 0 && !shutdown;) {
+                LockSupport.parkNanos(this, wait);
+            }
+            removeCancelled();
+            addPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+        removeCancelled();
+        for (int slot = 0; slot < wheel.length; slot++) {
+            while (wheel[slot] != null) {
+                WheelTask<?> task = wheel[slot];
+                unlink(task);
+                queued.decrementAndGet();
+                abandon(task);
+            }
+        }
+        abandonPending();
+    }
+
+    /**
+     * Cancel the timers which never reached the wheel.
+     */
+    private void abandonPending() {
+        for (WheelTask<?> task; (task = pending.poll()) != null;) {
+            queued.decrementAndGet();
+            abandon(task);
+        }
+    }
+
+    /**
+     * Cancel a task which will never run now that the wheel has stopped, so
+     * that anything waiting for it sees the cancellation.
+     */
+    private void abandon(WheelTask<?> task) {
+        if (task.cancel(false)) {
+            synchronized (unrun) {
+                unrun.add(task);
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        for (WheelTask<?> task; (task = cancelled.poll()) != null;) {
+            cancelledQueued.decrementAndGet();
+            if (task.inWheel) {
+                unlink(task);
+                queued.decrementAndGet();
+            }
+        }
+    }
+
+    private void addPending() {
+        for (WheelTask<?> task; (task = pending.poll()) != null;) {
+            if (task.isCancelled()) {
+                // Cancelled before it reached the wheel
+                queued.decrementAndGet();
+                continue;
+            }
+            // A timer whose deadline has already passed goes in the current slot
+            long due = Math.max(tick, (task.deadline - startTime + tickNanos - 1) / tickNanos - 1);
+            task.rounds = (due - tick) / wheel.length;
+            int slot = (int) (due & mask);
+            task.slot = slot;
+            task.inWheel = true;
+            task.next = wheel[slot];
+            task.previous = null;
+            if (task.next != null) {
+                task.next.previous = task;
+            }
+            wheel[slot] = task;
+        }
+    }
+
+    private void expire(WheelTask<?> head) {
+        for (WheelTask<?> task = head; task != null;) {
+            WheelTask<?> next = task.next;
+            if (task.rounds <= 0) {
+                unlink(task);
+                queued.decrementAndGet();
+                if (!task.isCancelled()) {
+                    try {
+                        workers.execute(task);
+                    } catch (RejectedExecutionException x) {
+                        // Shutting down
+                    }
+                }
+            } else {
+                task.rounds--;
+            }
+            task = next;
+        }
+    }
+
+    private void unlink(WheelTask<?> task) {
+        if (task.previous != null) {
+            task.previous.next = task.next;
+        } else {
+            wheel[task.slot] = task.next;
+        }
+        if (task.next != null) {
+            task.next.previous = task.previous;
+        }
+        task.next = task.previous = null;
+        task.inWheel = false;
+    }
+
+    private <V> WheelTask<V> enqueue(WheelTask<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler shut down");
+        }
+        queued.incrementAndGet();
+        pending.add(task);
+        return task;
+    }
+
+    private long deadline(long delay, TimeUnit unit) {
+        return System.nanoTime() + Math.min(MAX_DELAY_NANOS, Math.max(0, unit.toNanos(delay)));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new WheelTask<>(Executors.callable(command), deadline(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new WheelTask<>(callable, deadline(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid period: " + period);
+        }
+        return enqueue(new WheelTask<>(Executors.callable(command), deadline(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Invalid delay: " + delay);
+        }
+        return enqueue(new WheelTask<>(Executors.callable(command), deadline(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // No need to go through the wheel for a task which is due now
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler shut down");
+        }
+        workers.execute(command);
+    }
+
+    /**
+     * Shut down the scheduler. The wheel stops, so timers which have not yet
+     * expired never will; they are cancelled, and anything waiting for them
+     * sees the cancellation. Tasks already handed to the workers still run.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(timerThread);
+        workers.shutdown();
+    }
+
+    /**
+     * Shut down the scheduler, as {@link #shutdown()}, and stop the workers.
+     * Waits for the timer thread to empty the wheel.
+     *
+     * @return The timers which had not yet expired, all of which have been
+     * cancelled, and the tasks the workers had not yet started
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        boolean interrupted = false;
+        while (timerThread.isAlive()) {
+            try {
+                timerThread.join();
+            } catch (InterruptedException x) {
+                interrupted = true;
+            }
+        }
+        List<Runnable> result;
+        synchronized (unrun) {
+            // Timers scheduled as the wheel stopped
+            abandonPending();
+            result = new ArrayList<>(unrun);
+        }
+        result.addAll(workers.shutdownNow());
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && !timerThread.isAlive() && workers.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        timerThread.join(Math.max(1, unit.toMillis(timeout)));
+        return workers.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && !timerThread.isAlive();
+    }
+
+    /**
+     * A task waiting in the wheel. The links and round count are only
+     * accessed by the timer thread.
+     */
+    private class WheelTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        private volatile long deadline;
+        /**
+         * Zero for a one shot task, positive for fixed rate, negative for fixed
+         * delay.
+         */
+        private final long period;
+        private long rounds;
+        private int slot;
+        private boolean inWheel;
+        private WheelTask<?> next;
+        private WheelTask<?> previous;
+
+        WheelTask(Callable<V> callable, long deadline, long period) {
+            super(callable);
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset() && !shutdown) {
+                deadline = (period > 0 ? deadline : System.nanoTime()) + Math.min(MAX_DELAY_NANOS, Math.abs(period));
+                try {
+                    enqueue(this);
+                } catch (RejectedExecutionException x) {
+                    // Shut down while running
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(mayInterruptIfRunning);
+            // Once shut down the timer thread empties the wheel itself
+            if (result && !shutdown) {
+                cancelledQueued.incrementAndGet();
+                cancelled.add(this);
+            }
+            return result;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package toyocsbridge;
 
 import java.time.Duration;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import org.lsst.sal.SAL_camera;
+import toyocsbridge.AggregateStatus.StatusMask;
+import toyocsbridge.OCSCommandExecutor.BlockingOCSCommand;
 import toyocsbridge.OCSCommandExecutor.CCSCommand;
+import toyocsbridge.OCSCommandExecutor.CommandListener;
+import toyocsbridge.OCSCommandExecutor.CommandPriority;
 import toyocsbridge.OCSCommandExecutor.OCSCommand;
 import toyocsbridge.OCSCommandExecutor.PreconditionsNotMet;
 import toyocsbridge.Shutter.ShutterState;
@@ -30,23 +31,61 @@ public class ToyOCSBridge {
     };
 
     // Note: order of declaration determines order of status boxes in GUI.
-    private final CCS ccs = new CCS();
-    private final State lse209State = new State(ccs, LSE209State.OFFLINE_PUBLISH_ONLY);
-    private OCSCommandExecutor ocs = new OCSCommandExecutor(ccs);
-    private final State takeImageReadinessState = new State(ccs, TakeImageReadinessState.NOT_READY);
-    private final Shutter shutter = new Shutter(ccs);
-    private final Rafts rafts = new Rafts(ccs);
-    private final Filter fcs = new Filter(ccs);
+    private final CCS ccs;
+    private final State lse209State;
+    private OCSCommandExecutor ocs;
+    private final State takeImageReadinessState;
+    private final Shutter shutter;
+    private final Rafts rafts;
+    private final Filter fcs;
+    private final ExposureReadiness readiness;
     private ScheduledFuture<?> startImageTimeout;
+    /**
+     * Tests of the aggregate status made on every state change, compiled
+     * once so that they do not allocate.
+     */
+    private final StatusMask readyToTakeImage;
+    private final StatusMask gettingReady;
+    /**
+     * If set, the exposures of a takeImages command are pipelined, see
+     * {@link #setPipelined(boolean)}.
+     */
+    private volatile boolean pipelined = Boolean.getBoolean("toyocsbridge.pipeline");
+    /**
+     * The time between the end of the readout of one image and the start of
+     * the next exposure of the same takeImages command.
+     */
+    private final LatencyHistogram imageOverhead = new LatencyHistogram();
 
     public ToyOCSBridge() {
+        this(new CCS());
+    }
+
+    /**
+     * Create a bridge using the given CCS, for example one running on a
+     * {@link VirtualTimeScheduler}.
+     *
+     * @param ccs The CCS to use
+     */
+    ToyOCSBridge(CCS ccs) {
+        this.ccs = ccs;
+        lse209State = new State(ccs, LSE209State.OFFLINE_PUBLISH_ONLY);
+        ocs = new OCSCommandExecutor(ccs);
+        takeImageReadinessState = new State(ccs, TakeImageReadinessState.NOT_READY);
+        shutter = new Shutter(ccs);
+        rafts = new Rafts(ccs);
+        fcs = new Filter(ccs);
+        readiness = new ExposureReadiness(ccs, rafts, shutter);
         // We are ready to take an image only if the rafts have been cleared, and the shutter
-        // has been prepared.
+        // has been prepared. This listener is part of the state machine (commands wait 
+        // for the readiness state), so it stays synchronous.
+        AggregateStatus as = ccs.getAggregateStatus();
+        readyToTakeImage = as.mask(Rafts.RaftsState.QUIESCENT, Shutter.ShutterReadinessState.READY);
+        gettingReady = as.mask(TakeImageReadinessState.GETTING_READY);
         ccs.addStateChangeListener((state, oldState) -> {
-            AggregateStatus as = ccs.getAggregateStatus();
-            if (as.hasState(Rafts.RaftsState.QUIESCENT, Shutter.ShutterReadinessState.READY)) {
+            if (readyToTakeImage.matches()) {
                 takeImageReadinessState.setState(TakeImageReadinessState.READY);
-            } else if (!as.hasState(TakeImageReadinessState.GETTING_READY)) {
+            } else if (!gettingReady.matches()) {
                 takeImageReadinessState.setState(TakeImageReadinessState.NOT_READY);
             }
         });
@@ -60,14 +99,114 @@ public class ToyOCSBridge {
      * @param ocs
      */
     void setExecutor(OCSCommandExecutor ocs) {
+        this.ocs.shutdown();
+        for (CommandListener l : this.ocs.getCommandListeners()) {
+            ocs.addCommandListener(l);
+        }
+        ocs.setCommandMetrics(this.ocs.getCommandMetrics());
+        ocs.setDurationEstimator(this.ocs.getDurationEstimator());
         this.ocs = ocs;
     }
 
+    /**
+     * Add a listener to the command executor, it is retained if the executor
+     * is replaced.
+     *
+     * @param listener The listener to add
+     */
+    void addCommandListener(CommandListener listener) {
+        ocs.addCommandListener(listener);
+    }
+
+    /**
+     * Remove a listener added with {@link #addCommandListener}.
+     *
+     * @param listener The listener to remove
+     */
+    void removeCommandListener(CommandListener listener) {
+        ocs.removeCommandListener(listener);
+    }
+
+    /**
+     * @return The latency histograms and outcome counts of the commands run
+     * by the bridge, retained if the executor is replaced
+     */
+    CommandMetrics getCommandMetrics() {
+        return ocs.getCommandMetrics();
+    }
+
+    /**
+     * @return The estimator which learns how long commands take, retained if
+     * the executor is replaced
+     */
+    DurationEstimator getDurationEstimator() {
+        return ocs.getDurationEstimator();
+    }
+
+    /**
+     * Estimate the duration of a command from the durations learned for the
+     * same key, and arrange for the actual duration of the command to be
+     * learned. Until enough durations have been learned, or if learning is
+     * switched off, the worst case is used.
+     *
+     * @param command The command
+     * @param key The key describing the command and the state it starts in
+     * @param known A part of the duration which is known, for example the
+     * time until the rafts finish a readout, and which is not learned
+     * @param worstCase The worst case estimate
+     * @return The estimated duration
+     */
+    private Duration estimate(OCSCommand command, String key, Duration known, Duration worstCase) {
+        command.durationKey = key;
+        command.knownDuration = known.toNanos();
+        return ocs.getDurationEstimator().estimate(key, known, worstCase);
+    }
+
+    /**
+     * Choose how the exposures of a takeImages command are sequenced. By
+     * default each exposure waits for the readout of the previous one to
+     * finish, and only then gets the rafts and shutter ready. When pipelined,
+     * the shutter is got ready while the rafts are still reading out, so the
+     * next exposure can start as soon as the readout ends.
+     * The default can be changed with the <code>toyocsbridge.pipeline</code>
+     * system property.
+     *
+     * @param pipelined <code>true</code> to pipeline exposures
+     */
+    void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * @return The distribution of the time from the end of the readout of one
+     * image to the start of the next exposure, within each takeImages
+     * command
+     */
+    LatencyHistogram getImageOverhead() {
+        return imageOverhead;
+    }
+
+    /**
+     * Publish the command and scheduler statistics in the platform MBean
+     * server.
+     */
+    void registerMBeans() {
+        ocs.getCommandMetrics().registerMBeans(ccs.getName());
+        ccs.getSchedulerMetrics().registerMBean(ccs.getName());
+    }
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
         ToyOCSBridge ocs = new ToyOCSBridge();
+        Journal.openIfConfigured(ocs);
+        ocs.registerMBeans();
+        MetricsServer.startIfConfigured(ocs);
         ToyOCSGUI gui = new ToyOCSGUI(ocs);
         gui.setVisible(true);
     }
@@ -170,7 +309,7 @@ public class ToyOCSBridge {
         return ccs;
     }
 
-    class InitImageCommand extends OCSCommand {
+    class InitImageCommand extends BlockingOCSCommand {
 
         private final double deltaT;
 
@@ -197,17 +336,12 @@ public class ToyOCSBridge {
         void execute() {
             Duration takeImagesExpected = Duration.ofMillis((long) (deltaT * 1000));
             takeImageReadinessState.setState(TakeImageReadinessState.GETTING_READY);
-            ccs.schedule(takeImagesExpected.minus(Rafts.CLEAR_TIME), () -> {
-                rafts.clear(1);
-            });
-            ccs.schedule(takeImagesExpected.minus(Shutter.PREP_TIME), () -> {
-                shutter.prepare();
-            });
+            readiness.prepareAhead(true, takeImagesExpected);
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_initImage(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{deltaT};
         }
     }
 
@@ -220,6 +354,11 @@ public class ToyOCSBridge {
         private final boolean wavefront;
         private final boolean guider;
         private final String visitName;
+        /**
+         * When the readout of the last image taken will finish, or -1 before
+         * the first image.
+         */
+        private long readoutEnd = -1;
 
         public TakeImagesCommand(int cmdId, double exposure, int nImages, boolean openShutter, boolean science, boolean wavefront, boolean guider, String visitName) {
             super(cmdId);
@@ -243,35 +382,78 @@ public class ToyOCSBridge {
             if (startImageTimeout != null && !startImageTimeout.isDone()) {
                 throw new PreconditionsNotMet("Exposure in progress");
             }
-            // Worse case estimate
+            Duration worstCase = getWorstCaseDuration();
+            // Any readout still in progress delays the first exposure by a known amount,
+            // and the exposures themselves take a known time, so only the overheads are learned
+            Duration readout = rafts.getTimeUntilIdle();
+            Duration known = readout.plus(Duration.ofMillis((long) (exposure * 1000)).multipliedBy(nImages));
+            // Key on the preparation the first exposure will actually get, see ExposureReadiness
+            boolean clear = rafts.needsClear(readout);
+            boolean prepare = openShutter && shutter.needsPrepare(readout);
+            String preparation = clear ? (prepare ? "clear+prepare" : "clear") : (prepare ? "prepare" : "ready");
+            String key = "takeImages ~" + Math.round(exposure) + "s x" + nImages + (openShutter ? " open " : " dark ") + preparation + (pipelined ? " pipelined" : "");
+            return estimate(this, key, known, worstCase);
+        }
+
+        @Override
+        Duration getWorstCaseDuration() {
             return Duration.ofMillis((long) (exposure * 1000)).plus(Shutter.MOVE_TIME).plus(Rafts.READOUT_TIME).multipliedBy(nImages);
         }
 
         @Override
-        void execute() throws InterruptedException, ExecutionException, TimeoutException {
+        CompletionStage<Void> executeAsync() {
             Duration exposeTime = Duration.ofMillis((long) (exposure * 1000));
+            boolean pipeline = pipelined;
+            CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
             for (int i = 0; i < nImages; i++) {
-                Future waitUntilReady = ccs.waitForStatus(TakeImageReadinessState.READY);
-                // FIXME: It is not necessarily necessary tp always do a clear _AND_ prepare
-                if (takeImageReadinessState.isInState(TakeImageReadinessState.NOT_READY)) {
-                    rafts.clear(1);
-                    shutter.prepare();
-                }
+                // For the last exposure we only wait until the readout starts
+                // For other exposures we must wait until readout is complete
+                boolean last = i + 1 == nImages;
+                result = result.thenCompose(v -> pipeline ? takeImagePipelined(exposeTime, last) : takeImage(exposeTime, last));
+            }
+            return result;
+        }
 
-                waitUntilReady.get(1, TimeUnit.SECONDS);
-                if (openShutter) {
-                    shutter.expose(exposeTime);
-                    rafts.expose(exposeTime.plus(Shutter.MOVE_TIME));
-                    // For the last exposure we only wait until the readout starts
-                    // For other exposures we must wait until readout is complete
-                    Future waitUntilDone = ccs.waitForStatus(i + 1 < nImages ? Rafts.RaftsState.QUIESCENT : Rafts.RaftsState.READING_OUT);
-                    waitUntilDone.get(exposeTime.plus(Shutter.MOVE_TIME).plus(Rafts.READOUT_TIME).plusSeconds(1).toMillis(), TimeUnit.MILLISECONDS);
-                } else {
-                    rafts.expose(exposeTime);
-                    Future waitUntilDone = ccs.waitForStatus(i + 1 < nImages ? Rafts.RaftsState.QUIESCENT : Rafts.RaftsState.READING_OUT);
-                    waitUntilDone.get(exposeTime.plus(Shutter.MOVE_TIME).plus(Rafts.READOUT_TIME).plusSeconds(1).toMillis(), TimeUnit.MILLISECONDS);
+        private CompletableFuture<Void> takeImage(Duration exposeTime, boolean last) {
+            // The rafts may still be reading out an image taken by an earlier command
+            CompletableFuture<Void> waitUntilReady = readiness.prepare(openShutter, Rafts.READOUT_TIME.plusSeconds(1));
+            return waitUntilReady.thenCompose(v -> {
+                expose(exposeTime);
+                return ccs.waitForStatusAsync(last ? Rafts.RaftsState.READING_OUT : Rafts.RaftsState.QUIESCENT,
+                        exposeTime.plus(Shutter.MOVE_TIME).plus(Rafts.READOUT_TIME).plusSeconds(1));
+            });
+        }
+
+        /**
+         * Take one image, overlapping the preparation for the next image with
+         * the readout.
+         */
+        private CompletableFuture<Void> takeImagePipelined(Duration exposeTime, boolean last) {
+            // The previous image may still be reading out
+            CompletableFuture<Void> waitUntilReady = readiness.prepare(openShutter, Rafts.READOUT_TIME.plusSeconds(1));
+            return waitUntilReady.thenCompose(v -> {
+                expose(exposeTime);
+                CompletableFuture<Void> readingOut = ccs.waitForStatusAsync(Rafts.RaftsState.READING_OUT,
+                        exposeTime.plus(Shutter.MOVE_TIME).plusSeconds(1));
+                if (last || !openShutter) {
+                    return readingOut;
                 }
+                // Make sure the shutter will be ready for the next image while the rafts are still reading out
+                return readingOut.thenRun(() -> readiness.prepareShutterAhead(Duration.ofNanos(Math.max(0, readoutEnd - ccs.nanoTime()))));
+            });
+        }
+
+        private void expose(Duration exposeTime) {
+            long now = ccs.nanoTime();
+            if (readoutEnd >= 0) {
+                imageOverhead.record(Math.max(0, now - readoutEnd));
+            }
+            Duration integrationTime = openShutter ? exposeTime.plus(Shutter.MOVE_TIME) : exposeTime;
+            if (openShutter) {
+                shutter.expose(exposeTime);
             }
+            rafts.expose(integrationTime);
+            readoutEnd = now + integrationTime.plus(Rafts.READOUT_TIME).toNanos();
         }
 
         @Override
@@ -280,8 +462,8 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_takeImages(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{exposure, nImages, openShutter, science, wavefront, guider, visitName};
         }
 
     }
@@ -306,13 +488,20 @@ public class ToyOCSBridge {
             if (!fcs.filterIsAvailable(filter)) {
                 throw new PreconditionsNotMet("Invalid filter: " + filter);
             }
-            // Worse case
+            Duration worstCase = getWorstCaseDuration();
+            String from = fcs.getCurrentFilter() != null ? fcs.getCurrentFilter() : "none@" + fcs.getRotationPosition();
+            return estimate(this, "setFilter " + from + "->" + filter, Duration.ZERO, worstCase);
+        }
+
+        @Override
+        Duration getWorstCaseDuration() {
+            // A full rotation of the carousel, as well as unloading and loading
             return Filter.ROTATION_TIME_PER_DEGREE.multipliedBy(360).plus(Filter.LOAD_TIME).plus(Filter.UNLOAD_TIME);
         }
 
         @Override
-        void execute() throws Exception {
-            fcs.setFilter(filter);
+        CompletionStage<Void> executeAsync() {
+            return fcs.setFilter(filter);
         }
 
         @Override
@@ -321,13 +510,13 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_setFilter(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{filter};
         }
 
     }
 
-    private class InitGuiders extends OCSCommand {
+    class InitGuiders extends BlockingOCSCommand {
 
         private final String roiSpec;
 
@@ -355,8 +544,8 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_initGuiders(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{roiSpec};
         }
 
     }
@@ -378,15 +567,19 @@ public class ToyOCSBridge {
             if (nClears <= 0 || nClears > 15) {
                 throw new PreconditionsNotMet("Invalid nClears: " + nClears);
             }
+            return getWorstCaseDuration();
+        }
+
+        @Override
+        Duration getWorstCaseDuration() {
             return Rafts.CLEAR_TIME.multipliedBy(nClears);
         }
 
         @Override
-        void execute() throws InterruptedException, ExecutionException, TimeoutException {
+        CompletionStage<Void> executeAsync() {
             rafts.clear(nClears);
             // TODO: Note, unlike initImages, the clear command remains active until the clears are complete (Correct?)
-            Future waitUntilClear = ccs.waitForStatus(Rafts.RaftsState.QUIESCENT);
-            waitUntilClear.get(Rafts.CLEAR_TIME.multipliedBy(nClears).plus(Duration.ofSeconds(1)).toMillis(), TimeUnit.MILLISECONDS);
+            return ccs.waitForStatusAsync(Rafts.RaftsState.QUIESCENT, Rafts.CLEAR_TIME.multipliedBy(nClears).plus(Duration.ofSeconds(1)));
         }
 
         @Override
@@ -395,8 +588,8 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-//            mgr.ackCommand_clear(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{nClears};
         }
     }
 
@@ -430,29 +623,29 @@ public class ToyOCSBridge {
             if (startImageTimeout != null && !startImageTimeout.isDone()) {
                 throw new PreconditionsNotMet("Exposure in progress");
             }
+            return getWorstCaseDuration();
+        }
+
+        @Override
+        Duration getWorstCaseDuration() {
             return Duration.ofSeconds(1);
         }
 
         @Override
-        void execute() throws Exception {
-            Future waitUntilReady = ccs.waitForStatus(TakeImageReadinessState.READY);
-            // FIXME: It is not necessary to always clear and prepare the shutter, especially
-            // if we are not actually going to open the shutter.
-            if (takeImageReadinessState.isInState(TakeImageReadinessState.NOT_READY)) {
-                rafts.clear(1);
-                shutter.prepare();
-            }
+        CompletionStage<Void> executeAsync() {
+            CompletableFuture<Void> waitUntilReady = readiness.prepare(openShutter, Duration.ofSeconds(1));
 
-            waitUntilReady.get(1, TimeUnit.SECONDS);
-            if (openShutter) {
-                shutter.open();
-                rafts.startExposure();
-                // FIXME: Wait for shutter to open? right now we return immediately
-            } else {
-                rafts.startExposure();
-            }
-            startImageTimeout = ccs.schedule(Duration.ofMillis((long) (timeout * 1000)), () -> {
-                imageTimeout();
+            return waitUntilReady.thenRun(() -> {
+                if (openShutter) {
+                    shutter.open();
+                    rafts.startExposure();
+                    // FIXME: Wait for shutter to open? right now we return immediately
+                } else {
+                    rafts.startExposure();
+                }
+                startImageTimeout = ccs.schedule(Duration.ofMillis((long) (timeout * 1000)), () -> {
+                    imageTimeout();
+                });
             });
         }
 
@@ -462,8 +655,8 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-//            mgr.ackCommand_startImage(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{visitName, openShutter, science, wavefront, guider, timeout};
         }
 
     }
@@ -495,28 +688,22 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void execute() throws Exception {
+        CompletionStage<Void> executeAsync() {
             if (!startImageTimeout.cancel(false)) {
                 throw new RuntimeException("Image exposure already timed out");
             }
-            Future waitUntilClosed = ccs.waitForStatus(ShutterState.CLOSED);
+            CompletableFuture<Void> waitUntilClosed = ccs.waitForStatusAsync(ShutterState.CLOSED, Shutter.MOVE_TIME.plus(Duration.ofSeconds(1)));
             shutter.close();
-            waitUntilClosed.get(Shutter.MOVE_TIME.plus(Duration.ofSeconds(1)).toMillis(), TimeUnit.MILLISECONDS);
-            rafts.endExposure(true);
+            return waitUntilClosed.thenRun(() -> rafts.endExposure(true));
         }
 
         @Override
         public String toString() {
             return "EndImage("+getCmdId()+"){" + '}';
         }
-
-        @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-//            mgr.ackCommand_endImage(getCmdId(), response, timeout, message);
-        }
     }
 
-    private class DiscardRows extends OCSCommand {
+    private class DiscardRows extends BlockingOCSCommand {
 
         private final int nRows;
 
@@ -547,13 +734,13 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-//            mgr.ackCommand_discardRows(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{nRows};
         }
 
     }
 
-    class EnterControlCommand extends OCSCommand {
+    class EnterControlCommand extends BlockingOCSCommand {
 
         public EnterControlCommand(int cmdId) {
             super(cmdId);
@@ -576,14 +763,9 @@ public class ToyOCSBridge {
         public String toString() {
             return "EnterControlCommand("+getCmdId()+")";
         }
-
-        @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_enterControl(getCmdId(), response, timeout, message);
-        }
     }
 
-    class ExitCommand extends OCSCommand {
+    class ExitCommand extends BlockingOCSCommand {
 
         public ExitCommand(int cmdId) {
             super(cmdId);
@@ -606,14 +788,9 @@ public class ToyOCSBridge {
         public String toString() {
             return "ExitCommand("+getCmdId()+")";
         }
-
-        @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_exitControl(getCmdId(), response, timeout, message);
-        }
     }
 
-    class StartCommand extends OCSCommand {
+    class StartCommand extends BlockingOCSCommand {
 
         private final String configuration;
 
@@ -642,12 +819,12 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_start(getCmdId(), response, timeout, message);
+        Object[] getArguments() {
+            return new Object[]{configuration};
         }
     }
 
-    class StandbyCommand extends OCSCommand {
+    class StandbyCommand extends BlockingOCSCommand {
 
         public StandbyCommand(int cmdId) {
             super(cmdId);
@@ -674,12 +851,12 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_standby(getCmdId(), response, timeout, message);
+        CommandPriority getPriority() {
+            return CommandPriority.LIFECYCLE;
         }
     }
 
-    class EnableCommand extends OCSCommand {
+    class EnableCommand extends BlockingOCSCommand {
 
         public EnableCommand(int cmdId) {
             super(cmdId);
@@ -702,14 +879,9 @@ public class ToyOCSBridge {
         public String toString() {
             return "EnabledCommand("+getCmdId()+")";
         }
-
-        @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_enable(getCmdId(), response, timeout, message);            
-        }
     }
 
-    class DisableCommand extends OCSCommand {
+    class DisableCommand extends BlockingOCSCommand {
 
         public DisableCommand(int cmdId) {
             super(cmdId);
@@ -743,8 +915,8 @@ public class ToyOCSBridge {
         }
 
         @Override
-        void ackCommand(SAL_camera mgr, int response, int timeout, String message) {
-            mgr.ackCommand_disable(getCmdId(), response, timeout, message);
+        CommandPriority getPriority() {
+            return CommandPriority.LIFECYCLE;
         }
     }
 
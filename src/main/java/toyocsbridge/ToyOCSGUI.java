@@ -51,10 +51,10 @@ public class ToyOCSGUI extends javax.swing.JFrame {
             statusPanel.add(box);
             statusMap.put(name, combo);
         }
-        ccs.addStateChangeListener((newState, oldState) -> {
+        ccs.subscribe("GUI", (state, oldState, newState, timestamp) -> {
             SwingUtilities.invokeLater(() -> {
-                JComboBox combo = statusMap.get(newState.getEnumClass().getSimpleName());
-                combo.setSelectedItem(newState.getState());
+                JComboBox combo = statusMap.get(state.getEnumClass().getSimpleName());
+                combo.setSelectedItem(newState);
             });
         });
         filterComboBox.setModel(new DefaultComboBoxModel(ocs.getFCS().getAvailableFilters().toArray()));
@@ -0,0 +1,354 @@
+package toyocsbridge;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A discrete event scheduler running on a virtual clock. Tasks are run one at
+ * a time, in order of their deadline (and in order of scheduling for equal
+ * deadlines), and the clock jumps straight to the deadline of the next task,
+ * so a simulation runs as fast as the CPU allows while keeping event ordering
+ * deterministic.
+ * <p>
+ * The clock can either be driven by the caller, using {@link #advance} or
+ * {@link #runUntilIdle}, or left to run freely on its own thread after calling
+ * {@link #start}. Serial executors created by this scheduler run on the clock,
+ * so the OCS command executor stays in step with the simulated hardware. For
+ * repeatable runs, commands should be injected by scheduling them at a given
+ * virtual time rather than from other threads.
+ *
+ * @author tonyj
+ */
+class VirtualTimeScheduler extends AbstractExecutorService implements CCSScheduler {
+
+    private final PriorityQueue<VirtualTask<?>> queue = new PriorityQueue<>();
+    private volatile long now = 0;
+    private long sequence = 0;
+    /**
+     * The number of queued tasks which are not periodic.
+     */
+    private int oneShotQueued = 0;
+    private boolean shutdown = false;
+    private Thread clockThread;
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public int getCancelledQueued() {
+        // Cancelled tasks are removed from the queue immediately
+        return 0;
+    }
+
+    /**
+     * Run the clock freely, on a new thread, until the scheduler is shut down.
+     */
+    synchronized void start() {
+        if (clockThread != null) {
+            throw new IllegalStateException("Clock already started");
+        }
+        clockThread = new NamedThreadFactory("CCSVirtualClock").newThread(() -> {
+            for (VirtualTask<?> task; (task = takeTask()) != null;) {
+                task.run();
+            }
+        });
+        clockThread.start();
+    }
+
+    /**
+     * Advance the clock, running all tasks which fall due.
+     *
+     * @param duration The amount to advance the clock
+     */
+    void advance(Duration duration) {
+        runUntil(now + duration.toNanos());
+    }
+
+    /**
+     * Run all tasks with a deadline up to and including the given time, and
+     * then set the clock to that time.
+     *
+     * @param deadline The time to run until
+     */
+    void runUntil(long deadline) {
+        runTasks(deadline);
+        synchronized (this) {
+            now = Math.max(now, deadline);
+        }
+    }
+
+    /**
+     * Run tasks until there are no one shot tasks left to run. Periodic tasks
+     * which fall due before then are run, but since they never finish they
+     * do not on their own keep the simulation running. The clock is left at
+     * the deadline of the last task run.
+     */
+    void runUntilIdle() {
+        for (VirtualTask<?> task; (task = pollUntilIdle()) != null;) {
+            task.run();
+        }
+    }
+
+    private synchronized VirtualTask<?> pollUntilIdle() {
+        return oneShotQueued == 0 ? null : pollTask(Long.MAX_VALUE);
+    }
+
+    private void runTasks(long deadline) {
+        for (VirtualTask<?> task; (task = pollTask(deadline)) != null;) {
+            task.run();
+        }
+    }
+
+    private synchronized VirtualTask<?> pollTask(long deadline) {
+        VirtualTask<?> task = queue.peek();
+        if (task == null || task.deadline > deadline) {
+            return null;
+        }
+        queue.poll();
+        if (!task.isPeriodic()) {
+            oneShotQueued--;
+        }
+        now = Math.max(now, task.deadline);
+        return task;
+    }
+
+    private synchronized VirtualTask<?> takeTask() {
+        while (!shutdown && queue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                return null;
+            }
+        }
+        return shutdown ? null : pollTask(Long.MAX_VALUE);
+    }
+
+    private synchronized <V> VirtualTask<V> enqueue(VirtualTask<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler shut down");
+        }
+        task.sequence = sequence++;
+        queue.add(task);
+        if (!task.isPeriodic()) {
+            oneShotQueued++;
+        }
+        notifyAll();
+        return task;
+    }
+
+    private synchronized void remove(VirtualTask<?> task) {
+        if (queue.remove(task) && !task.isPeriodic()) {
+            oneShotQueued--;
+        }
+    }
+
+    private long deadline(long delay, TimeUnit unit) {
+        return now + Math.max(0, unit.toNanos(delay));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new VirtualTask<>(Executors.callable(command), deadline(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new VirtualTask<>(callable, deadline(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid period: " + period);
+        }
+        return enqueue(new VirtualTask<>(Executors.callable(command), deadline(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Invalid delay: " + delay);
+        }
+        return enqueue(new VirtualTask<>(Executors.callable(command), deadline(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ExecutorService newSerialExecutor(String name) {
+        // All tasks already run one at a time, in order, on the clock
+        return new AbstractExecutorService() {
+            private volatile boolean isShutdown = false;
+
+            @Override
+            public void execute(Runnable command) {
+                if (isShutdown) {
+                    throw new RejectedExecutionException(name + " shut down");
+                }
+                VirtualTimeScheduler.this.execute(command);
+            }
+
+            @Override
+            public void shutdown() {
+                isShutdown = true;
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                isShutdown = true;
+                return Collections.emptyList();
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return isShutdown;
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return isShutdown;
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) {
+                return isShutdown;
+            }
+        };
+    }
+
+    /**
+     * Shut down the scheduler. Tasks which have not yet run never will, since
+     * the clock stops, so they are cancelled, and anything waiting for them
+     * sees the cancellation.
+     */
+    @Override
+    public synchronized void shutdown() {
+        shutdownNow();
+    }
+
+    /**
+     * Shut down the scheduler, as {@link #shutdown()}.
+     *
+     * @return The tasks which had not yet run, all of which have been
+     * cancelled
+     */
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        List<Runnable> pending = new ArrayList<>(queue);
+        shutdown = true;
+        queue.clear();
+        oneShotQueued = 0;
+        for (Runnable task : pending) {
+            ((VirtualTask<?>) task).cancel(false);
+        }
+        notifyAll();
+        return pending;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && (clockThread == null || !clockThread.isAlive());
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = clockThread;
+        }
+        if (thread != null) {
+            thread.join(Math.max(1, unit.toMillis(timeout)));
+        }
+        return isTerminated();
+    }
+
+    /**
+     * A task scheduled at a given virtual time.
+     */
+    private class VirtualTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        private long deadline;
+        private long sequence;
+        /**
+         * Zero for a one shot task, positive for fixed rate, negative for fixed
+         * delay.
+         */
+        private final long period;
+
+        VirtualTask(Callable<V> callable, long deadline, long period) {
+            super(callable);
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                deadline = period > 0 ? deadline + period : now - period;
+                enqueue(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                remove(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - now, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            if (other instanceof VirtualTask) {
+                VirtualTask<?> that = (VirtualTask<?>) other;
+                int result = Long.compare(deadline, that.deadline);
+                return result != 0 ? result : Long.compare(sequence, that.sequence);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
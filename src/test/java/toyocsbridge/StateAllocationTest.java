@@ -0,0 +1,93 @@
+package toyocsbridge;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import toyocsbridge.AggregateStatus.StatusMask;
+import toyocsbridge.Rafts.RaftsState;
+import toyocsbridge.Shutter.ShutterReadinessState;
+import toyocsbridge.Shutter.ShutterState;
+import toyocsbridge.ToyOCSBridge.TakeImageReadinessState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that state transitions do not allocate, by counting the bytes
+ * allocated by the test thread over many expose and readout cycles like the
+ * ones in TransitionBenchmark.
+ *
+ * @author tonyj
+ */
+public class StateAllocationTest {
+
+    private static final int WARMUP_CYCLES = 200_000;
+    private static final int CYCLES = 100_000;
+    private static final int TRANSITIONS_PER_CYCLE = 7;
+
+    private Level savedLevel;
+    private CCS ccs;
+    private State<RaftsState> rafts;
+    private State<ShutterState> shutter;
+
+    @Before
+    public void setUp() {
+        // State change logging formats every transition, which is not what is being tested
+        Logger logger = Logger.getLogger("toyocsbridge");
+        savedLevel = logger.getLevel();
+        logger.setLevel(Level.WARNING);
+        ccs = new CCS();
+        rafts = new State<>(ccs, RaftsState.QUIESCENT);
+        shutter = new State<>(ccs, ShutterState.CLOSED);
+        new State<>(ccs, ShutterReadinessState.READY);
+        State<TakeImageReadinessState> readiness = new State<>(ccs, TakeImageReadinessState.READY);
+        StatusMask readyToTakeImage = ccs.getAggregateStatus().mask(RaftsState.QUIESCENT, ShutterReadinessState.READY);
+        ccs.addStateChangeListener((state, oldState) -> {
+            if (readyToTakeImage.matches()) {
+                readiness.setState(TakeImageReadinessState.READY);
+            } else {
+                readiness.setState(TakeImageReadinessState.NOT_READY);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        ccs.shutdown();
+        Logger.getLogger("toyocsbridge").setLevel(savedLevel);
+    }
+
+    @Test
+    public void setStateDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue("Thread allocation counting not supported", threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        // Let the JIT compile the transition path, and escape analysis do its work
+        for (int i = 0; i < WARMUP_CYCLES; i++) {
+            exposeAndReadout();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < CYCLES; i++) {
+            exposeAndReadout();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals("Bytes allocated per transition (" + allocated + " bytes in total)",
+                0, allocated / ((long) CYCLES * TRANSITIONS_PER_CYCLE));
+    }
+
+    private void exposeAndReadout() {
+        shutter.setState(ShutterState.OPENING);
+        rafts.setState(RaftsState.INTEGRATING);
+        shutter.setState(ShutterState.OPEN);
+        shutter.setState(ShutterState.CLOSING);
+        shutter.setState(ShutterState.CLOSED);
+        rafts.setState(RaftsState.READING_OUT);
+        rafts.setState(RaftsState.QUIESCENT);
+    }
+}